@@ -1,58 +1,654 @@
 // Hand-written R2 compiler
 import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
 //======================================================
 class R2
 {  
   public static void main(String[] args) throws 
                                              IOException
   {
-    System.out.println("R2 compiler written by ...");
+    // -serve=file runs a compile daemon on a Unix-domain
+    // socket at file, which only its owner can connect to;
+    // -connect=file sends the rest of the command line to
+    // it and exits with its status.
+    if (args.length == 1 && args[0].startsWith("-serve="))
+    {
+      new R2Daemon(Paths.get(args[0].substring(7))).serve();
+      return;
+    }
+    int status;
+    if (args.length > 0 && args[0].startsWith("-connect="))
+      status = R2Daemon.request(Paths.get(args[0].substring(9)),
+                     Arrays.copyOfRange(args, 1, args.length));
+    else
+      status = run(args, null, System.out, System.err);
+    if (status != 0)
+      System.exit(status);
+  }
+  //-----------------------------------------
+  // Carry out one command line, relative to directory dir
+  // (null for the current one).  Returns the exit status.
+  //
+  static int run(String[] args, File dir, PrintStream out, 
+                        PrintStream err) throws IOException
+  {
+    out.println("R2 compiler written by ...");
 
-    if (args.length != 1)
+    R2Options options = new R2Options();
+    options.dir = dir;
+    int argIndex = 0;
+    try
     {
-      System.err.println("Wrong number cmd line args");  
-      System.exit(1);
+      argIndex = options.parse(args);
+    }
+    catch (IllegalArgumentException e)
+    {
+      err.println(e.getMessage());
+      return 1;
     }
+    if (options.cacheDir != null)
+      options.cache = R2Cache.open(
+                          new File(options.path(options.cacheDir)), 
+                          options.cacheSize);
 
-    // set to true to debug token manager
-    boolean debug = false;
+    if (options.batch)
+    {
+      if (argIndex == args.length)
+      {
+        err.println("No source files for batch");  
+        return 1;
+      }
+      int failed = compileBatch(
+            Arrays.copyOfRange(args, argIndex, args.length), 
+                                        options, out, err);
+      if (options.cacheStats)
+        options.cache.printStats(out);
+      return failed > 0 ? 1 : 0;
+    }
+
+    if (argIndex != args.length - 1)
+    {
+      err.println("Wrong number cmd line args");  
+      return 1;
+    }
 
+    String error = compile(args[argIndex], options);
+    if (error != null)
+    {
+      err.println(error);
+      return 1;
+    }
+    if (options.cacheStats)
+      options.cache.printStats(out);
+    return 0;
+  }
+  //-----------------------------------------
+  // Compile baseName.s to baseName.a with its own symbol
+  // table, token manager, code generator and parser.
+  // Returns null, or the error message, which is also
+  // written to the .a file.
+  //
+  static String compile(String baseName, R2Options options)
+                                        throws IOException
+  {
     // build the input and output file names
-    String inFileName = args[0] + ".s";
-    String outFileName = args[0] + ".a";
+    String inFileName = options.path(baseName + ".s");
+    String outFileName = options.path(baseName + ".a");
+
+    String mapFileName = options.listing == R2Output.MAP ? 
+                        options.path(baseName + ".map") : null;
+
+    // reuse the output of an identical earlier compile
+    String key = null;
+    if (options.cache != null && options.traceFileName == null)
+    {
+      key = options.cache.key(inFileName, options.key());
+      if (key != null && 
+          options.cache.fetch(key, outFileName, mapFileName))
+        return null;
+    }
 
     // construct file objects
-    Scanner inFile = new Scanner(new File(inFileName));
-    PrintWriter outFile = new PrintWriter(outFileName);
+    R2SourceReader inFile = 
+                   new R2SourceReader(new File(inFileName));
+    R2Output outFile = new R2Output(outFileName, mapFileName);
 
     // identify compiler/author in the output file
     outFile.println("; from R2 compiler written by ...");
 
     // construct objects that make up compiler
     R2SymTab st = new R2SymTab();
-    R2TokenMgr tm =  new R2TokenMgr(
-                                inFile, outFile, debug);
     R2CodeGen cg = new R2CodeGen(outFile, st);
-    R2Parser parser = new R2Parser(st, tm, cg);
+    R2Trace trace = new R2Trace(options.traceLevel, cg, 
+                      options.traceFileName == null ? null : 
+                      options.path(options.traceFileName));
+    R2TokenMgr tm = new R2TokenMgr(inFile, st, cg, trace, 
+                                          options.listing);
+    R2Parser parser = new R2Parser(st, tm, cg, trace);
 
     // parse and translate
+    String error = null;
     try
     {
       parser.parse();
     }      
     catch (RuntimeException e) 
     {
-      System.err.println(e.getMessage());
-      outFile.println(e.getMessage());
-      outFile.close();
-      System.exit(1);
+      error = e.getMessage();
+      cg.endCodeAtError();
+      outFile.println(error);
     }
 
     outFile.close();
+    trace.close();
+    if (key != null && error == null)
+      options.cache.store(key, outFileName, mapFileName);
+    return error;
+  }
+  //-----------------------------------------
+  // Compile every named source concurrently on a fork-join
+  // pool.  A name is a base name, a .s file, or a directory
+  // standing for all the .s files in it.  Errors are
+  // reported per file in input order and do not stop the
+  // batch.  Returns the number of files that failed.
+  //
+  static int compileBatch(String[] names, R2Options options,
+                          PrintStream out, PrintStream err)
+  {
+    ArrayList<String> baseNames = new ArrayList<String>();
+    for (String name : names)
+    {
+      File dir = new File(options.path(name));
+      String[] sources = dir.isDirectory() ? 
+              dir.list((d, n) -> n.endsWith(".s")) : null;
+      if (sources == null)
+        baseNames.add(name.endsWith(".s") ? 
+                 name.substring(0, name.length() - 2) : name);
+      else
+      {
+        Arrays.sort(sources);
+        for (String s : sources)
+          baseNames.add(new File(name, 
+                 s.substring(0, s.length() - 2)).getPath());
+      }
+    }
+
+    int count = baseNames.size();
+    String[] errors = new String[count];
+    ForkJoinPool pool = new ForkJoinPool();
+    ArrayList<ForkJoinTask<?>> tasks = 
+                                new ArrayList<ForkJoinTask<?>>();
+    long start = System.nanoTime();
+    for (int i = 0; i < count; i++)
+    {
+      int f = i;
+      tasks.add(pool.submit(() ->
+      {
+        try
+        {
+          errors[f] = compile(baseNames.get(f), options);
+        }
+        catch (Throwable e)   // a stack overflow too
+        {
+          errors[f] = e.toString();
+        }
+      }));
+    }
+    for (ForkJoinTask<?> task : tasks)
+      task.join();
+    long wall = System.nanoTime() - start;
+    pool.shutdown();
+
+    int failed = 0;
+    for (int i = 0; i < count; i++)
+      if (errors[i] != null)
+      {
+        failed++;
+        err.println(baseNames.get(i) + ".s: " + errors[i]);
+      }
+
+    double ms = Math.max(wall / 1e6, 1e-3);
+    out.printf("%d files, %d failed, %d threads%n",
+               count, failed, pool.getParallelism());
+    out.printf("%.1f ms wall, %.1f files/s, %.3f ms/file%n", 
+               ms, count * 1000 / ms, ms / Math.max(count, 1));
+    return failed;
   }
 }                                           // end of R2
 //======================================================
+class R2Options
+{
+  int traceLevel = R2Trace.OFF;
+  String traceFileName = null;
+  int listing = R2Output.FULL;
+  boolean batch = false;
+  String cacheDir = null;
+  long cacheSize = 64 << 20;          // in bytes
+  boolean cacheStats = false;
+  R2Cache cache = null;         // opened from cacheDir
+  File dir = null;              // null for current one
+  //-----------------------------------------
+  // Options come before the base name(s):
+  //   -trace=level       off (default), tokens or parse
+  //   -tracefile=name    write trace to binary file name
+  //   -listing=mode      full (default), none or map
+  //   -batch             compile many sources concurrently
+  //   -cache=dir         reuse output of unchanged sources
+  //   -cachesize=mb      evict past this size (default 64)
+  //   -cachestats        display cache hits and misses
+  // Returns the index of the first argument that is not
+  // an option.
+  //
+  public int parse(String[] args)
+  {
+    int argIndex = 0;
+    for (; argIndex < args.length && 
+                 args[argIndex].startsWith("-"); argIndex++)
+    {
+      String arg = args[argIndex];
+      if (arg.startsWith("-trace="))
+        traceLevel = R2Trace.getLevel(arg.substring(7));
+      else if (arg.startsWith("-tracefile="))
+        traceFileName = arg.substring(11);
+      else if (arg.startsWith("-listing="))
+        listing = R2Output.getListing(arg.substring(9));
+      else if (arg.equals("-batch"))
+        batch = true;
+      else if (arg.startsWith("-cache="))
+        cacheDir = arg.substring(7);
+      else if (arg.startsWith("-cachesize="))
+        cacheSize = Long.parseLong(arg.substring(11)) << 20;
+      else if (arg.equals("-cachestats"))
+        cacheStats = true;
+      else
+        throw new IllegalArgumentException(
+                                "Unknown option " + arg);
+    }
+    if (batch && traceFileName != null)
+      throw new IllegalArgumentException(
+                        "-tracefile cannot be used with -batch");
+    if (cacheStats && cacheDir == null)
+      throw new IllegalArgumentException(
+                        "-cachestats needs -cache");
+    return argIndex;
+  }
+  //-----------------------------------------
+  // The options that affect the output, for cache keys.
+  //
+  public String key()
+  {
+    return "R2 trace=" + traceLevel + " listing=" + listing;
+  }
+  //-----------------------------------------
+  // Resolve a file name against dir.
+  //
+  public String path(String name)
+  {
+    File file = new File(name);
+    if (dir == null || file.isAbsolute())
+      return name;
+    return new File(dir, name).getPath();
+  }
+}                                    // end of R2Options
+//======================================================
+// Long-lived compile service on a Unix-domain socket.  A
+// request makes the daemon write files as its owner, so
+// only the owner may connect: the socket is bound in a new
+// directory only the owner can enter, made owner-only, 
+// and then moved to where clients look for it.  Each 
+// request carries the dialect, the client's working 
+// directory and its command line; the reply carries the 
+// exit status and what the compiler wrote to stdout and
+// stderr.
+//
+class R2Daemon
+{
+  private Path path;
+  private ServerSocketChannel server;
+  private ExecutorService pool;
+  //-----------------------------------------
+  public R2Daemon(Path path) throws IOException
+  {
+    this.path = path.toAbsolutePath();
+    Path dir = Files.createTempDirectory(
+        this.path.getParent(), ".daemon", 
+        PosixFilePermissions.asFileAttribute(
+                  PosixFilePermissions.fromString("rwx------")));
+    Path socket = dir.resolve("socket");
+    server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+    server.bind(UnixDomainSocketAddress.of(socket));
+    Files.setPosixFilePermissions(socket, 
+                   PosixFilePermissions.fromString("rw-------"));
+    Files.move(socket, this.path, 
+                              StandardCopyOption.ATOMIC_MOVE);
+    Files.delete(dir);
+    Runtime.getRuntime().addShutdownHook(new Thread(() ->
+    {
+      try
+      {
+        Files.deleteIfExists(this.path);
+      }
+      catch (IOException e)
+      {
+      }
+    }));
+    pool = Executors.newCachedThreadPool();
+  }
+  //-----------------------------------------
+  // Accept requests until killed, each on its own thread
+  // with its own compiler objects.
+  //
+  public void serve() throws IOException
+  {
+    System.out.println("R2 daemon listening on " + path);
+    while (true)
+    {
+      SocketChannel channel = server.accept();
+      pool.execute(() -> handle(channel));
+    }
+  }
+  //-----------------------------------------
+  private void handle(SocketChannel channel)
+  {
+    try (SocketChannel s = channel)
+    {
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(Channels.newInputStream(s)));
+      DataOutputStream reply = new DataOutputStream(
+         new BufferedOutputStream(Channels.newOutputStream(s)));
+      String dialect = in.readUTF();
+      File dir = new File(in.readUTF());
+      String[] args = new String[in.readInt()];
+      for (int i = 0; i < args.length; i++)
+        args[i] = in.readUTF();
+
+      ByteArrayOutputStream outBytes = 
+                                  new ByteArrayOutputStream();
+      ByteArrayOutputStream errBytes = 
+                                  new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(outBytes, true);
+      PrintStream err = new PrintStream(errBytes, true);
+      int status = 1;
+      if (!dialect.equals("R2"))
+        err.println("Daemon compiles R2, not " + dialect);
+      else
+        try
+        {
+          status = R2.run(args, dir, out, err);
+        }
+        catch (Throwable e)   // status 1, as from the CLI
+        {
+          err.println(e);
+        }
+
+      reply.writeInt(status);
+      writeBytes(reply, outBytes.toByteArray());
+      writeBytes(reply, errBytes.toByteArray());
+      reply.flush();
+    }
+    catch (IOException e)
+    {
+      System.err.println("Request failed: " + e.getMessage());
+    }
+  }
+  //-----------------------------------------
+  // Send a command line to the daemon at path, copy its
+  // output to stdout and stderr, and return its status.
+  //
+  public static int request(Path path, String[] args) 
+                                        throws IOException
+  {
+    try (SocketChannel s = SocketChannel.open(
+                           UnixDomainSocketAddress.of(path)))
+    {
+      DataOutputStream request = new DataOutputStream(
+         new BufferedOutputStream(Channels.newOutputStream(s)));
+      request.writeUTF("R2");
+      request.writeUTF(System.getProperty("user.dir"));
+      request.writeInt(args.length);
+      for (String arg : args)
+        request.writeUTF(arg);
+      request.flush();
+
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(Channels.newInputStream(s)));
+      int status = in.readInt();
+      System.out.write(readBytes(in));
+      System.out.flush();
+      System.err.write(readBytes(in));
+      System.err.flush();
+      return status;
+    }
+  }
+  //-----------------------------------------
+  private static void writeBytes(DataOutputStream out, 
+                          byte[] bytes) throws IOException
+  {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+  //-----------------------------------------
+  private static byte[] readBytes(DataInputStream in) 
+                                        throws IOException
+  {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return bytes;
+  }
+}                                     // end of R2Daemon
+//======================================================
+// On-disk cache of compiled output, keyed by a hash of
+// the source bytes, the options that affect the output and
+// the compiler build.  Entries are files hash.a (and
+// hash.map) in the cache directory; past the size cap the
+// least recently used are evicted.
+//
+class R2Cache
+{
+  // one per directory, shared by batch and daemon compiles
+  private static final HashMap<File, R2Cache> caches = 
+                                  new HashMap<File, R2Cache>();
+
+  private File dir;
+  private long capacity;                  // in bytes
+  private long size;                      // in bytes
+  private LinkedHashMap<String, Long> entries;  // LRU first
+  private String build;
+  private long hits, misses, evictions;
+  //-----------------------------------------
+  public static synchronized R2Cache open(File dir, 
+                          long capacity) throws IOException
+  {
+    dir = dir.getCanonicalFile();
+    R2Cache cache = caches.get(dir);
+    if (cache == null)
+    {
+      cache = new R2Cache(dir);
+      caches.put(dir, cache);
+    }
+    cache.setCapacity(capacity);
+    return cache;
+  }
+  //-----------------------------------------
+  private R2Cache(File dir) throws IOException
+  {
+    this.dir = dir;
+    Files.createDirectories(dir.toPath());
+    entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    // rebuild the LRU order from modification times
+    File[] files = dir.listFiles();
+    Arrays.sort(files, 
+                Comparator.comparingLong(File::lastModified));
+    for (File file : files)
+    {
+      String name = file.getName();
+      int dot = name.indexOf('.');
+      if (name.endsWith(".tmp"))      // left by a crash
+        file.delete();
+      else if (dot > 0)
+      {
+        entries.merge(name.substring(0, dot), file.length(), 
+                                                  Long::sum);
+        size += file.length();
+      }
+    }
+
+    // a rebuilt compiler must not reuse old entries
+    URL classFile = R2Cache.class.getResource("R2.class");
+    build = classFile + "@" + 
+               classFile.openConnection().getLastModified();
+  }
+  //-----------------------------------------
+  private synchronized void setCapacity(long capacity)
+  {
+    this.capacity = capacity;
+    evict();
+  }
+  //-----------------------------------------
+  // Hash of the source file and options, or null if the
+  // source cannot be read.
+  //
+  public String key(String inFileName, String options)
+  {
+    try
+    {
+      byte[] source = Files.readAllBytes(Paths.get(inFileName));
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      md.update((build + "\n" + options + "\n").getBytes(
+                                   StandardCharsets.UTF_8));
+      return HexFormat.of().formatHex(md.digest(source));
+    }
+    catch (IOException | NoSuchAlgorithmException e)
+    {
+      return null;
+    }
+  }
+  //-----------------------------------------
+  // Copy the entry for key to the output files.  Returns
+  // false on a miss.
+  //
+  public boolean fetch(String key, String outFileName, 
+                                         String mapFileName)
+  {
+    Path entry = dir.toPath().resolve(key + ".a");
+    try
+    {
+      if (mapFileName != null)
+        Files.copy(dir.toPath().resolve(key + ".map"), 
+                   Paths.get(mapFileName), 
+                   StandardCopyOption.REPLACE_EXISTING);
+      Files.copy(entry, Paths.get(outFileName), 
+                 StandardCopyOption.REPLACE_EXISTING);
+      entry.toFile().setLastModified(
+                                  System.currentTimeMillis());
+    }
+    catch (IOException e)
+    {
+      synchronized (this)
+      {
+        misses++;
+      }
+      return false;
+    }
+    synchronized (this)
+    {
+      hits++;
+      if (entries.get(key) == null)   // added by another run
+        add(key, entry.toFile().length());
+    }
+    return true;
+  }
+  //-----------------------------------------
+  // Add the output files as the entry for key.  Failures
+  // only cost a later miss.
+  //
+  public void store(String key, String outFileName, 
+                                         String mapFileName)
+  {
+    try
+    {
+      long bytes = 0;
+      if (mapFileName != null)
+        bytes += put(Paths.get(mapFileName), key + ".map");
+      bytes += put(Paths.get(outFileName), key + ".a");
+      synchronized (this)
+      {
+        add(key, bytes);
+        evict();
+      }
+    }
+    catch (IOException e)
+    {
+    }
+  }
+  //-----------------------------------------
+  // Copy to a temporary file, force it to disk, then rename
+  // it into place, so a crash never leaves a partial entry.
+  //
+  private long put(Path from, String name) throws IOException
+  {
+    Path tmp = Files.createTempFile(dir.toPath(), name, ".tmp");
+    try
+    {
+      Files.copy(from, tmp, 
+                 StandardCopyOption.REPLACE_EXISTING);
+      try (FileChannel channel = 
+                FileChannel.open(tmp, StandardOpenOption.WRITE))
+      {
+        channel.force(true);
+      }
+      Files.move(tmp, dir.toPath().resolve(name), 
+                 StandardCopyOption.ATOMIC_MOVE);
+    }
+    finally
+    {
+      Files.deleteIfExists(tmp);
+    }
+    return Files.size(dir.toPath().resolve(name));
+  }
+  //-----------------------------------------
+  private void add(String key, long bytes)
+  {
+    Long old = entries.put(key, bytes);
+    size += bytes - (old == null ? 0 : old);
+  }
+  //-----------------------------------------
+  // Drop least recently used entries until under capacity.
+  // The .a file goes first, since it marks an entry present.
+  //
+  private void evict()
+  {
+    Iterator<Map.Entry<String, Long>> it = 
+                                 entries.entrySet().iterator();
+    while (size > capacity && it.hasNext())
+    {
+      Map.Entry<String, Long> entry = it.next();
+      new File(dir, entry.getKey() + ".a").delete();
+      new File(dir, entry.getKey() + ".map").delete();
+      size -= entry.getValue();
+      it.remove();
+      evictions++;
+    }
+  }
+  //-----------------------------------------
+  public synchronized void printStats(PrintStream out)
+  {
+    out.printf("cache: %d hits, %d misses, %d evictions, " +
+               "%d entries, %d of %d KB%n", hits, misses, 
+               evictions, entries.size(), size / 1024, 
+               capacity / 1024);
+  }
+}                                      // end of R2Cache
+//======================================================
 interface R2Constants
 {
   // --R2 integers that identify token kinds
@@ -101,88 +697,952 @@ interface R2Constants
 //======================================================
 class R2SymTab
 {
-  private ArrayList<String> symbol;
-  private ArrayList<String> dwValue;
-  private ArrayList<Boolean> needsdw;
+  // kinds of symbols
+  public static final byte VARIABLE = 0;
+  public static final byte LITERAL = 1;   // @n, or @_n for -n
+  public static final byte TEMP = 2;      // @tn
+  public static final byte VALUE = 3;     // @vn
+
+  // Symbol i is symbol[i], of kind kind[i], with dw value
+  // value[i].  Each name is held once; enter returns the
+  // index already given to a name.
+  private String[] symbol;
+  private byte[] kind;
+  private short[] value;
+  private BitSet needsdw;
+  private int size;
+  private int[] table;         // hash index into symbol
+  private String[] pool;       // interned names
+  private int poolSize;
   //-----------------------------------------
   public R2SymTab()
   {
-    symbol = new ArrayList<String>();
-    dwValue = new ArrayList<String>();
-    needsdw = new ArrayList<Boolean>();
+    symbol = new String[64];
+    kind = new byte[64];
+    value = new short[64];
+    needsdw = new BitSet();
+    size = 0;
+    table = new int[64];
+    pool = new String[64];
   }
   //-----------------------------------------
-  public int enter(String s, String v, boolean b)
+  public int enter(String s, byte k, int v)
   {
-    int index = symbol.indexOf(s);
+    int index = find(s);
     if (index >= 0)    // s already in symbol?
       return index;    // yes, then return its index
 
-    index = symbol.size();
-    symbol.add(s);     // add symbol
-    dwValue.add(v);    // add value
-    needsdw.add(b);    // add needsdw value
+    if (size == symbol.length)
+    {
+      symbol = Arrays.copyOf(symbol, 2 * size);
+      kind = Arrays.copyOf(kind, 2 * size);
+      value = Arrays.copyOf(value, 2 * size);
+    }
+    index = size++;
+    symbol[index] = s;     // add symbol
+    kind[index] = k;       // add kind
+    value[index] = (short)v;  // add value
+    insert(s, index);
     return index;
   }
   //-----------------------------------------
-  public String getSymbol(int index)
+  public String getSymbol(int index)
+  {
+    return symbol[index];
+  }
+  //-----------------------------------------
+  public byte getKind(int index)
+  {
+    return kind[index];
+  }
+  //-----------------------------------------
+  public int getValue(int index)
+  {
+    return value[index];
+  }
+  //-----------------------------------------
+  public boolean getNeedsdw(int index)
+  {
+    return needsdw.get(index);
+  }
+  //-----------------------------------------
+  public void setNeedsdw(int index)
+  {
+    needsdw.set(index);
+  }
+  //-----------------------------------------
+  public int getSize()
+  {
+    return size;
+  }
+  //-----------------------------------------
+  public boolean isLiteral(int index)
+  {
+    return kind[index] == LITERAL;
+  }
+  //-----------------------------------------
+  public int enterLiteral(int v)
+  {
+    v = (short)v;
+    if (v < 0)
+      return enter("@_" + -v, LITERAL, v);
+    return enter("@" + v, LITERAL, v);
+  }
+  //-----------------------------------------
+  // Return the name in chars[start..start + length) as a
+  // String, always the same String for the same name, 
+  // and built only the first time the name is seen.  The
+  // token managers intern identifiers and numbers 
+  // straight from the source buffer.
+  //
+  public String intern(char[] chars, int start, int length)
+  {
+    int h = 0;
+    for (int i = 0; i < length; i++)
+      h = 31 * h + chars[start + i];   // as String.hashCode
+    int mask = pool.length - 1;
+    int i = (h ^ (h >>> 16)) & mask;
+    for (; pool[i] != null; i = (i + 1) & mask)
+      if (matches(pool[i], chars, start, length))
+        return pool[i];
+
+    String s = new String(chars, start, length);
+    pool[i] = s;
+    if (2 * ++poolSize > pool.length)  // keep half empty
+    {
+      String[] old = pool;
+      pool = new String[2 * old.length];
+      mask = pool.length - 1;
+      for (String name : old)
+        if (name != null)
+        {
+          int j = hash(name) & mask;
+          while (pool[j] != null)
+            j = (j + 1) & mask;
+          pool[j] = name;
+        }
+    }
+    return s;
+  }
+  //-----------------------------------------
+  private static boolean matches(String s, char[] chars, 
+                                    int start, int length)
+  {
+    if (s.length() != length)
+      return false;
+    for (int i = 0; i < length; i++)
+      if (s.charAt(i) != chars[start + i])
+        return false;
+    return true;
+  }
+  //-----------------------------------------
+  // Return the index of s in symbol, or -1.  table is an
+  // open-addressing hash index into symbol: each slot holds
+  // an index + 1, or 0 if empty.  Linear probing.
+  //
+  private int find(String s)
+  {
+    int mask = table.length - 1;
+    for (int i = hash(s) & mask; table[i] != 0; 
+                                        i = (i + 1) & mask)
+      if (symbol[table[i] - 1].equals(s))
+        return table[i] - 1;
+    return -1;
+  }
+  //-----------------------------------------
+  // Record in table that s is at index.  Keeps table at 
+  // most half full.
+  //
+  private void insert(String s, int index)
+  {
+    if (2 * (index + 1) > table.length)
+    {
+      table = new int[2 * table.length];
+      for (int i = 0; i < index; i++)
+        insert(symbol[i], i);
+    }
+    int mask = table.length - 1;
+    int i = hash(s) & mask;
+    while (table[i] != 0)
+      i = (i + 1) & mask;
+    table[i] = index + 1;
+  }
+  //-----------------------------------------
+  private static int hash(String s)
+  {
+    int h = s.hashCode();
+    return h ^ (h >>> 16);
+  }
+}                                     // end of R2SymTab
+//======================================================
+// Writes the output file through a reusable byte buffer
+// and a FileChannel, in large blocks.  Instructions and
+// dw's are laid out from fixed-width templates, giving 
+// the same bytes printf gave, but without parsing a 
+// format for every line.
+//
+class R2Output
+{
+  // listing modes: echo each source line as a comment,
+  // no echo, or no echo but a map file giving the line
+  // of the output file where each source line's code
+  // starts
+  public static final int FULL = 0;
+  public static final int NONE = 1;
+  public static final int MAP = 2;
+  private static final String[] LISTINGS = 
+                                  {"full", "none", "map"};
+
+  private static final byte[] NEWLINE = 
+                     System.lineSeparator().getBytes();
+  private static final byte[] INDENT =     // before op
+                               "          ".getBytes();
+  private static final byte[] GAP =        // op to opnd
+                                   "      ".getBytes();
+  private static final byte[] DW =         // label to value
+                             " dw         ".getBytes();
+  private FileChannel channel;
+  private ByteBuffer buffer;
+  private int lines;            // lines written
+  private R2Output map;          // null if no map
+  //-----------------------------------------
+  public R2Output(String fileName, String mapFileName) 
+                                        throws IOException
+  {
+    channel = new FileOutputStream(fileName).getChannel();
+    buffer = ByteBuffer.allocate(65536);
+    if (mapFileName != null)
+    {
+      map = new R2Output(mapFileName, null);
+      map.println("; source line, output line");
+    }
+  }
+  //-----------------------------------------
+  // Listing mode named by name, which is full, none or 
+  // map.
+  //
+  public static int getListing(String name)
+  {
+    for (int i = 0; i < LISTINGS.length; i++)
+      if (LISTINGS[i].equals(name))
+        return i;
+    throw new IllegalArgumentException(
+                          "Unknown listing mode " + name);
+  }
+  //-----------------------------------------
+  // Map sourceLine to the next line written.
+  //
+  public void mark(int sourceLine)
+  {
+    map.println(sourceLine + " " + (lines + 1));
+  }
+  //-----------------------------------------
+  public void println()
+  {
+    newLine();
+  }
+  //-----------------------------------------
+  public void println(String s)
+  {
+    print(s);
+    newLine();
+  }
+  //-----------------------------------------
+  // Same as printf("          %-4s      %s%n", op, opnd),
+  // or printf("          %-4s%n", op) if opnd is null.
+  //
+  public void instruction(String op, String opnd)
+  {
+    put(INDENT);
+    print(op);
+    pad(op.length(), 4);
+    if (opnd != null)
+    {
+      put(GAP);
+      print(opnd);
+    }
+    newLine();
+  }
+  //-----------------------------------------
+  // Same as printf("%-9s dw         %s%n", label + ":", value).
+  //
+  public void dw(String label, String value)
+  {
+    print(label);
+    put((byte)':');
+    pad(label.length() + 1, 9);
+    put(DW);
+    print(value);
+    newLine();
+  }
+  //-----------------------------------------
+  public void close()
+  {
+    if (map != null)
+      map.close();
+    try
+    {
+      drain();
+      channel.close();
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(
+                "Error writing output: " + e.getMessage());
+    }
+  }
+  //-----------------------------------------
+  // ASCII chars go straight into buffer; anything else 
+  // is encoded with the default charset, as PrintWriter
+  // does.
+  //
+  private void print(String s)
+  {
+    int length = s.length();
+    for (int i = 0; i < length; i++)
+    {
+      char c = s.charAt(i);
+      if (c >= 128)
+      {
+        put(s.substring(i).getBytes());
+        return;
+      }
+      put((byte)c);
+    }
+  }
+  //-----------------------------------------
+  private void newLine()
+  {
+    put(NEWLINE);
+    lines++;
+  }
+  //-----------------------------------------
+  private void pad(int length, int width)
+  {
+    for (int i = length; i < width; i++)
+      put((byte)' ');
+  }
+  //-----------------------------------------
+  private void put(byte b)
+  {
+    if (!buffer.hasRemaining())
+      drainChecked();
+    buffer.put(b);
+  }
+  //-----------------------------------------
+  private void put(byte[] bytes)
+  {
+    for (byte b : bytes)
+      put(b);
+  }
+  //-----------------------------------------
+  private void drainChecked()
+  {
+    try
+    {
+      drain();
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(
+                "Error writing output: " + e.getMessage());
+    }
+  }
+  //-----------------------------------------
+  private void drain() throws IOException
+  {
+    buffer.flip();
+    while (buffer.hasRemaining())
+      channel.write(buffer);
+    buffer.clear();
+  }
+}                                     // end of R2Output
+//======================================================
+// Reads the source file a line at a time into a reusable
+// char buffer, decoding with the default charset as
+// Scanner does.  Small files are read through a 
+// FileChannel and big ones are memory mapped.  Lines end
+// with \n, \r\n or \r.
+//
+class R2SourceReader
+{
+  private static final long MAP_SIZE = 1 << 20;  // bytes
+  private FileChannel channel;
+  private ByteBuffer bytes;
+  private boolean mapped;
+  private CharsetDecoder decoder;
+  private boolean endOfInput;  // everything decoded
+  private char[] buffer;       // decoded chars
+  private int count;           // chars in buffer
+  private int lineStart;       // current line is in
+  private int lineEnd;         //   buffer[lineStart..lineEnd)
+  private int next;            // start of next line
+  //-----------------------------------------
+  public R2SourceReader(File file) throws IOException
+  {
+    channel = new FileInputStream(file).getChannel();
+    mapped = channel.size() >= MAP_SIZE;
+    if (mapped)
+      bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                                           channel.size());
+    else
+    {
+      bytes = ByteBuffer.allocate(8192);
+      bytes.flip();                     // empty to start
+    }
+    decoder = Charset.defaultCharset().newDecoder();
+    decoder.onMalformedInput(CodingErrorAction.REPLACE);
+    decoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+    buffer = new char[65536];
+  }
+  //-----------------------------------------
+  // Move to the next line.  Return false at end of file.
+  //
+  public boolean nextLine()
+  {
+    try
+    {
+      lineStart = next;
+      int i = lineStart;
+      while (true)
+      {
+        while (i < count && buffer[i] != '\n' && 
+                                        buffer[i] != '\r')
+          i++;
+        if (i == count || 
+            (buffer[i] == '\r' && i + 1 == count))
+        {
+          if (!endOfInput)     // line may go on
+          {
+            i -= fill();
+            continue;
+          }
+          if (i == count && lineStart == count)
+            return false;
+        }
+        lineEnd = i;
+        next = i;
+        if (i < count)                  // skip line end
+        {
+          next++;
+          if (buffer[i] == '\r' && next < count && 
+                                      buffer[next] == '\n')
+            next++;
+        }
+        return true;
+      }
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(
+                 "Error reading source: " + e.getMessage());
+    }
+  }
+  //-----------------------------------------
+  // Char at column of the current line, or '\n' past its
+  // end.
+  //
+  public char charAt(int column)
+  {
+    int i = lineStart + column;
+    return i < lineEnd ? buffer[i] : '\n';
+  }
+  //-----------------------------------------
+  // The current line, after prefix.
+  //
+  public String getLine(String prefix)
+  {
+    return new StringBuilder(prefix.length() + 
+        lineEnd - lineStart).append(prefix).append(
+        buffer, lineStart, lineEnd - lineStart).toString();
+  }
+  //-----------------------------------------
+  // The buffer holding the current line, and where 
+  // column of the line is in it.  Valid until nextLine.
+  //
+  public char[] getChars()
+  {
+    return buffer;
+  }
+  //-----------------------------------------
+  public int offset(int column)
+  {
+    return lineStart + column;
+  }
+  //-----------------------------------------
+  // Move the current line to the start of buffer, then
+  // decode more of the file after it.  Return how far 
+  // the line moved.
+  //
+  private int fill() throws IOException
+  {
+    int shift = lineStart;
+    System.arraycopy(buffer, lineStart, buffer, 0, 
+                                       count - lineStart);
+    count -= shift;
+    next -= shift;
+    lineStart = 0;
+    if (count == buffer.length)   // line fills buffer
+      buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+
+    CharBuffer chars = CharBuffer.wrap(buffer, count, 
+                                   buffer.length - count);
+    while (chars.position() == count && !endOfInput)
+    {
+      boolean last = mapped;
+      if (!mapped)
+      {
+        bytes.compact();
+        last = channel.read(bytes) < 0;
+        bytes.flip();
+      }
+      CoderResult result = 
+                         decoder.decode(bytes, chars, last);
+      if (last && result.isUnderflow())
+      {
+        decoder.flush(chars);
+        endOfInput = true;
+        channel.close();
+      }
+    }
+    count = chars.position();
+    return shift;
+  }
+}                               // end of R2SourceReader
+//======================================================
+// Traces tokens (level TOKENS), or tokens and the 
+// grammar rules entered (level PARSE), either into the
+// output file as comments or to a binary trace file that
+//   java R2Trace <trace file>
+// prints.  When the level is OFF a trace call is just a
+// compare.
+//
+class R2Trace
+{
+  public static final int OFF = 0;
+  public static final int TOKENS = 1;
+  public static final int PARSE = 2;
+  private static final String[] LEVELS = 
+                               {"off", "tokens", "parse"};
+
+  // record types in a binary trace file
+  private static final int TOKEN = 'T';
+  private static final int RULE = 'R';
+
+  private final int level;
+  private R2CodeGen cg;         // text trace goes here
+  private DataOutputStream out; // or here if not null
+  //-----------------------------------------
+  public R2Trace(int level, R2CodeGen cg, String fileName)
+                                        throws IOException
+  {
+    this.level = level;
+    this.cg = cg;
+    if (fileName != null && level > OFF)
+      out = new DataOutputStream(new BufferedOutputStream(
+                         new FileOutputStream(fileName)));
+  }
+  //-----------------------------------------
+  // Level named by name, which is off, tokens or parse.
+  //
+  public static int getLevel(String name)
+  {
+    for (int i = 0; i < LEVELS.length; i++)
+      if (LEVELS[i].equals(name))
+        return i;
+    throw new IllegalArgumentException(
+                          "Unknown trace level " + name);
+  }
+  //-----------------------------------------
+  public void token(Token t)
+  {
+    if (level < TOKENS)
+      return;
+    if (out == null)
+      cg.emitComment(formatToken(t.kind, t.beginLine, 
+         t.beginColumn, t.endLine, t.endColumn, t.image));
+    else
+      try
+      {
+        out.writeByte(TOKEN);
+        out.writeInt(t.kind);
+        out.writeInt(t.beginLine);
+        out.writeInt(t.beginColumn);
+        out.writeInt(t.endLine);
+        out.writeInt(t.endColumn);
+        out.writeUTF(t.image);
+      }
+      catch (IOException e)
+      {
+        throw new RuntimeException(
+                 "Error writing trace: " + e.getMessage());
+      }
+  }
+  //-----------------------------------------
+  // Rule entered, with t the current token.
+  //
+  public void rule(String name, Token t)
+  {
+    if (level < PARSE)
+      return;
+    if (out == null)
+      cg.emitComment(
+             formatRule(name, t.beginLine, t.beginColumn));
+    else
+      try
+      {
+        out.writeByte(RULE);
+        out.writeUTF(name);
+        out.writeInt(t.beginLine);
+        out.writeInt(t.beginColumn);
+      }
+      catch (IOException e)
+      {
+        throw new RuntimeException(
+                 "Error writing trace: " + e.getMessage());
+      }
+  }
+  //-----------------------------------------
+  public void close() throws IOException
+  {
+    if (out != null)
+      out.close();
+  }
+  //-----------------------------------------
+  private static String formatToken(int kind, int bL, 
+                     int bC, int eL, int eC, String image)
+  {
+    return String.format(
+        "; kd=%3d bL=%3d bC=%3d eL=%3d eC=%3d im=%s",
+        kind, bL, bC, eL, eC, image);
+  }
+  //-----------------------------------------
+  private static String formatRule(String name, int bL, 
+                                                   int bC)
+  {
+    return String.format("; rule bL=%3d bC=%3d %s",
+                                           bL, bC, name);
+  }
+  //-----------------------------------------
+  // Print a binary trace file as the text trace.
+  //
+  public static void main(String[] args) throws 
+                                             IOException
+  {
+    if (args.length != 1)
+    {
+      System.err.println("Wrong number cmd line args");  
+      System.exit(1);
+    }
+
+    DataInputStream in = new DataInputStream(
+                      new BufferedInputStream(
+                          new FileInputStream(args[0])));
+    int type;
+    while ((type = in.read()) >= 0)
+      if (type == TOKEN)
+      {
+        int kind = in.readInt();
+        int bL = in.readInt();
+        int bC = in.readInt();
+        int eL = in.readInt();
+        int eC = in.readInt();
+        System.out.println(
+               formatToken(kind, bL, bC, eL, eC, in.readUTF()));
+      }
+      else if (type == RULE)
+      {
+        String name = in.readUTF();
+        int bL = in.readInt();
+        System.out.println(formatRule(name, bL, in.readInt()));
+      }
+      else
+      {
+        System.err.println("Bad trace file " + args[0]);
+        System.exit(1);
+      }
+    in.close();
+  }
+}                                     // end of R2Trace
+//======================================================
+// Micro-benchmarks of the compiler's hot paths, run as
+//   java R2Bench <benchmark>
+// where benchmark is one of
+//   symbols  ns per R2SymTab lookup, 10 to 1,000,000
+//            symbols
+//   tokens   bytes allocated per token by R2TokenMgr
+//   output   lines/s written by R2Output and by printf
+// Each figure is the best of RUNS runs, so JIT warm-up 
+// and GC pauses drop out.
+//
+class R2Bench
+{
+  private static final int RUNS = 5;
+  private static long sink;    // keeps results live
+  //-----------------------------------------
+  public static void main(String[] args) throws 
+                                             IOException
+  {
+    if (args.length != 1)
+    {
+      System.err.println("Wrong number cmd line args");  
+      System.exit(1);
+    }
+
+    if (args[0].equals("symbols"))
+      symbols();
+    else if (args[0].equals("tokens"))
+    {
+      tokens("punctuation", "((( ; ))) + - * / = { }");
+      tokens("expressions", "x1 = (a + 17) * b2 - tmp / 3;");
+    }
+    else if (args[0].equals("output"))
+      output();
+    else
+    {
+      System.err.println("Unknown benchmark " + args[0]);
+      System.exit(1);
+    }
+  }
+  //-----------------------------------------
+  // Time enter() of names already in the table, for 
+  // tables of 10 to 1,000,000 symbols.  With a hash index
+  // the time per lookup stays flat apart from cache 
+  // effects; with a linear scan it grows with the size.
+  //
+  private static void symbols()
+  {
+    int lookups = 2000000;
+    for (int n = 10; n <= 1000000; n *= 10)
+    {
+      String[] names = new String[n];
+      for (int i = 0; i < n; i++)
+        names[i] = "v" + i;
+
+      long best = Long.MAX_VALUE;
+      for (int run = 0; run < RUNS; run++)
+      {
+        R2SymTab st = new R2SymTab();
+        for (String name : names)
+          st.enter(name, R2SymTab.VARIABLE, 0);
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++)
+          sink += st.enter(names[i % n], 
+                                    R2SymTab.VARIABLE, 0);
+        best = Math.min(best, System.nanoTime() - start);
+      }
+      System.out.printf("%9d symbols: %6.1f ns/lookup%n", 
+                                  n, (double)best / lookups);
+    }
+  }
+  //-----------------------------------------
+  // Bytes the thread allocates per token while R2TokenMgr
+  // reads 500,000 tokens of source made of copies of line.
+  // There is no source echo, so this is the token path 
+  // alone.
+  //
+  private static void tokens(String name, String line) 
+                                        throws IOException
   {
-    return symbol.get(index);
+    File file = File.createTempFile("R2Bench", ".s");
+    file.deleteOnExit();
+    writeLines(file, line, 1);
+    long perLine = countTokens(tokenMgr(file));
+    writeLines(file, line, (int)(500000 / perLine));
+
+    com.sun.management.ThreadMXBean bean = 
+             (com.sun.management.ThreadMXBean)
+        java.lang.management.ManagementFactory.getThreadMXBean();
+    long best = Long.MAX_VALUE;
+    long count = 0;
+    for (int run = 0; run < RUNS; run++)
+    {
+      R2TokenMgr tm = tokenMgr(file);
+      long start = bean.getCurrentThreadAllocatedBytes();
+      count = countTokens(tm);
+      best = Math.min(best, 
+                  bean.getCurrentThreadAllocatedBytes() - start);
+    }
+    System.out.printf("%-12s %7d tokens: %5.1f bytes/token%n", 
+                          name, count, (double)best / count);
   }
   //-----------------------------------------
-  public String getdwValue(int index)
+  private static void writeLines(File file, String line, 
+                            int count) throws IOException
   {
-    return dwValue.get(index);
+    try (PrintWriter out = new PrintWriter(file))
+    {
+      for (int i = 0; i < count; i++)
+        out.println(line);
+    }
   }
   //-----------------------------------------
-  public boolean getNeedsdw(int index)
+  private static R2TokenMgr tokenMgr(File file) 
+                                        throws IOException
   {
-    return needsdw.get(index);
+    return new R2TokenMgr(new R2SourceReader(file), 
+                 new R2SymTab(), 
+                 null,             // nothing is echoed
+                 new R2Trace(R2Trace.OFF, null, null), 
+                                           R2Output.NONE);
   }
   //-----------------------------------------
-  public void setNeedsdw(int index)
+  // Read tokens into one slot, as the parser's ring 
+  // does, up to EOF.  Return how many were read.
+  //
+  private static long countTokens(R2TokenMgr tm)
   {
-    needsdw.set(index, true);
+    Token token = new Token();
+    long count = 0;
+    for (tm.getNextToken(token); token.kind != R2Constants.EOF;
+                                    tm.getNextToken(token))
+      count++;
+    return count;
   }
   //-----------------------------------------
-  public int getSize()
+  // Lines/s for 2,000,000 lines, three instructions to 
+  // each dw, written by R2Output and by the printf 
+  // formats it replaced.  The two files must match.
+  //
+  private static void output() throws IOException
   {
-    return symbol.size();
+    int lines = 2000000;
+    File fast = File.createTempFile("R2Bench", ".a");
+    File printf = File.createTempFile("R2Bench", ".a");
+    fast.deleteOnExit();
+    printf.deleteOnExit();
+
+    long bestFast = Long.MAX_VALUE;
+    long bestPrintf = Long.MAX_VALUE;
+    for (int run = 0; run < RUNS; run++)
+    {
+      long start = System.nanoTime();
+      R2Output out = new R2Output(fast.getPath(), null);
+      for (int i = 0; i < lines / 4; i++)
+      {
+        out.instruction("ld", "x" + (i & 255));
+        out.instruction("add", "@" + i);
+        out.instruction("st", "@t0");
+        out.dw("x" + (i & 255), "" + i);
+      }
+      out.close();
+      bestFast = Math.min(bestFast, System.nanoTime() - start);
+
+      start = System.nanoTime();
+      PrintWriter pw = new PrintWriter(new BufferedWriter(
+                                   new FileWriter(printf)));
+      for (int i = 0; i < lines / 4; i++)
+      {
+        pw.printf("          %-4s      %s%n", "ld", 
+                                            "x" + (i & 255));
+        pw.printf("          %-4s      %s%n", "add", "@" + i);
+        pw.printf("          %-4s      %s%n", "st", "@t0");
+        pw.printf("%-9s dw         %s%n", "x" + (i & 255) + ":",
+                                                       "" + i);
+      }
+      pw.close();
+      bestPrintf = Math.min(bestPrintf, 
+                                  System.nanoTime() - start);
+    }
+
+    if (Files.mismatch(fast.toPath(), printf.toPath()) >= 0)
+    {
+      System.err.println("R2Output and printf differ");
+      System.exit(1);
+    }
+    System.out.printf("R2Output %6.2fM lines/s%n", 
+                                 lines * 1e3 / bestFast);
+    System.out.printf("printf   %6.2fM lines/s%n", 
+                               lines * 1e3 / bestPrintf);
   }
-}                                     // end of R2SymTab
+}                                      // end of R2Bench
 //======================================================
 class R2TokenMgr implements R2Constants
 {
-  private Scanner inFile;          
-  private PrintWriter outFile;
-  private boolean debug;
+  private R2SourceReader inFile;          
+  private R2SymTab st;        // interns identifiers
+  private R2CodeGen cg;
+  private R2Trace trace;
+  private int listing;         // source echo, see R2Output
   private char currentChar;
   private int currentColumnNumber;
   private int currentLineNumber;
-  private String inputLine;    // holds 1 line of input
-  private Token token;         // holds 1 token
   private StringBuffer buffer; // token image built here
+
+  // images of single-char tokens, so none are built
+  private static final String[] ONE_CHAR = new String[128];
+  static
+  {
+    for (char c = 0; c < 128; c++)
+      ONE_CHAR[c] = Character.toString(c);
+  }
+
+  // Keywords are recognized while an identifier is 
+  // scanned by walking a trie built from KEYWORDS, so 
+  // the cost does not grow with the number of keywords.
+  // TRIE[state * 128 + c] is the state after ASCII char c
+  // (-1 if no keyword has that prefix), and 
+  // KEYWORD_AT[state] is the keyword ending there or -1.
+  private static final String[] KEYWORDS = 
+                                   {"print", "println", "readint"};
+  private static final int[] KEYWORD_KINDS = 
+                                   {PRINT, PRINTLN, READINT};
+  private static final int[] TRIE;
+  private static final int[] KEYWORD_AT;
+  static
+  {
+    int states = 1;
+    for (String k : KEYWORDS)
+      states += k.length();
+    TRIE = new int[states * 128];
+    Arrays.fill(TRIE, -1);
+    KEYWORD_AT = new int[states];
+    Arrays.fill(KEYWORD_AT, -1);
+
+    int used = 1;
+    for (int k = 0; k < KEYWORDS.length; k++)
+    {
+      int state = 0;
+      for (int i = 0; i < KEYWORDS[k].length(); i++)
+      {
+        int next = state * 128 + KEYWORDS[k].charAt(i);
+        if (TRIE[next] < 0)
+          TRIE[next] = used++;
+        state = TRIE[next];
+      }
+      KEYWORD_AT[state] = k;
+    }
+  }
   //-----------------------------------------
-  public R2TokenMgr(Scanner inFile, 
-                    PrintWriter outFile, boolean debug)
+  public R2TokenMgr(R2SourceReader inFile, R2SymTab st,
+                    R2CodeGen cg, R2Trace trace, 
+                    int listing)
   {
     this.inFile = inFile;
-    this.outFile = outFile;
-    this.debug = debug;
+    this.st = st;
+    this.cg = cg;
+    this.trace = trace;
+    this.listing = listing;
     currentChar = '\n';        //  '\n' triggers read
     currentLineNumber = 0;
     buffer = new StringBuffer();
   }
   //-----------------------------------------
-  public Token getNextToken()
+  // Read the next token into token, a slot reused by
+  // the parser.
+  //
+  public void getNextToken(Token token)
   {
     // skip whitespace
     while (Character.isWhitespace(currentChar))
       getNextChar();
 
-    // construct token to be returned to parser
-    token = new Token();   
+    // clear token to be returned to parser
+    token.kind = 0;
+    token.image = null;
     token.next = null;
+    token.endLine = 0;
+    token.endColumn = 0;
 
     // save start-of-token position
     token.beginLine = currentLineNumber;
@@ -200,42 +1660,48 @@ class R2TokenMgr implements R2Constants
     else  // check for unsigned int
     if (Character.isDigit(currentChar)) 
     {
-      buffer.setLength(0);  // clear buffer
-      do  // build token image in buffer
+      do  // scan number
       {
-        buffer.append(currentChar); 
         token.endLine = currentLineNumber;
         token.endColumn = currentColumnNumber;
         getNextChar();
       } while (Character.isDigit(currentChar));
-      // save buffer as String in token.image
-      token.image = buffer.toString();
+      // interned like an identifier, so a number seen 
+      // before needs no new String
+      token.image = st.intern(inFile.getChars(), 
+          inFile.offset(token.beginColumn - 1), 
+          token.endColumn - token.beginColumn + 1);
       token.kind = UNSIGNED;
     }
 
     else  // check for identifier
     if (Character.isLetter(currentChar)) 
     { 
-      buffer.setLength(0);  // clear buffer
-      do  // build token image in buffer
+      int state = 0;             // trie state
+      do  // scan identifier
       {
-        buffer.append(currentChar);
+        if (state >= 0)
+          state = currentChar < 128 ? 
+                  TRIE[state * 128 + currentChar] : -1;
         token.endLine = currentLineNumber;
         token.endColumn = currentColumnNumber;
         getNextChar();
       } while (Character.isLetterOrDigit(currentChar));
-      // save buffer as String in token.image
-      token.image = buffer.toString();
-
-      // --R2 check if keyword
-      if (token.image.equals("print"))
-        token.kind = PRINT;
-    else if (token.image.equals("println"))
-        token.kind = PRINTLN;
-    else if (token.image.equals("readint"))
-        token.kind = READINT;
-    else  // not a keyword so kind is ID
+
+      // check if keyword
+      int keyword = state >= 0 ? KEYWORD_AT[state] : -1;
+      if (keyword >= 0)
+      {
+        token.image = KEYWORDS[keyword];
+        token.kind = KEYWORD_KINDS[keyword];
+      }
+      else  // not a keyword so kind is ID
+      {
+        token.image = st.intern(inFile.getChars(), 
+            inFile.offset(token.beginColumn - 1), 
+            token.endColumn - token.beginColumn + 1);
         token.kind = ID;
+      }
     }
 
     else  // --R2 process single-character token
@@ -278,7 +1744,9 @@ class R2TokenMgr implements R2Constants
       }
 
       // save currentChar as String in token.image
-      token.image = Character.toString(currentChar);
+      token.image = currentChar < 128 ? 
+            ONE_CHAR[currentChar] : 
+            Character.toString(currentChar);
 
       // save end-of-token position
       token.endLine = currentLineNumber;
@@ -287,14 +1755,7 @@ class R2TokenMgr implements R2Constants
       getNextChar();  // read beyond end of token
     }
 
-    // token trace appears as comments in output file
-    if (debug)
-      outFile.printf(
-        "; kd=%3d bL=%3d bC=%3d eL=%3d eC=%3d im=%s%n",
-        token.kind, token.beginLine, token.beginColumn, 
-        token.endLine, token.endColumn, token.image);
-
-    return token;     // return token to parser
+    trace.token(token);
   }     
   //-----------------------------------------
   private void getNextChar()
@@ -304,14 +1765,17 @@ class R2TokenMgr implements R2Constants
 
     if (currentChar == '\n')        // need next line?
     {
-      if (inFile.hasNextLine())     // any lines left?
+      if (inFile.nextLine())        // any lines left?
       {
-        inputLine = inFile.nextLine();  // get next line
-        // output source line as comment
-        outFile.println("; " + inputLine);
-        inputLine = inputLine + "\n";   // mark line end
         currentColumnNumber = 0;
         currentLineNumber++;   
+
+        // output source line as comment, or just mark
+        // where its code starts for the line map
+        if (listing == R2Output.FULL)
+          cg.emitComment(inFile.getLine("; "));
+        else if (listing == R2Output.MAP)
+          cg.emitLineMark(currentLineNumber);
       }                                
       else  // at end of file
       {
@@ -320,12 +1784,12 @@ class R2TokenMgr implements R2Constants
       }
     }
 
-    // get next char from inputLine
+    // get next char from current line
     currentChar = 
-                inputLine.charAt(currentColumnNumber++);
+                inFile.charAt(currentColumnNumber++);
 
     // --R2 in S2, test for single-line comment goes here
-    if(currentChar == '/' && inputLine.charAt(currentColumnNumber) == '/'){
+    if(currentChar == '/' && inFile.charAt(currentColumnNumber) == '/'){
 		currentChar = '\n';
 	}
   }
@@ -336,16 +1800,45 @@ class R2Parser implements R2Constants
   private R2SymTab st;
   private R2TokenMgr tm;
   private R2CodeGen cg;
+  private R2Trace trace;
   private Token currentToken;
-  private Token previousToken;
+  private Token previousToken; 
+
+  // Tokens are read into a ring of reusable slots: 
+  // token number pos (currentToken) is in 
+  // ring[pos & RING_MASK], and tokens up to number 
+  // read - 1 have been read.  A token is reused when
+  // RING_SIZE - 1 more have been read, so the parser
+  // may hold on to one while it consumes a few more.
+  private static final int RING_SIZE = 8;
+  private static final int RING_MASK = RING_SIZE - 1;
+  private Token[] ring;
+  private int pos;
+  private int read;
+
+  // expression parsing, see expr
+  private int[] ops = new int[16];  // operator stack
+  private int opTop;                // number on ops
+  private int parens;               // "(" on ops
+  private int[] values = new int[16];  // operand stack
+  private int valueTop;             // number on values
   //-----------------------------------------
   public R2Parser(R2SymTab st, R2TokenMgr tm, 
-                                           R2CodeGen cg)
+                  R2CodeGen cg, R2Trace trace)
   {
+    this.trace = trace;
     this.st = st;
     this.tm = tm;
     this.cg = cg;   
-    currentToken = tm.getNextToken();   // prime
+    ring = new Token[RING_SIZE];
+    for (int i = 0; i < RING_SIZE; i++)
+      ring[i] = new Token();
+
+    // prime currentToken with first token
+    tm.getNextToken(ring[0]);
+    currentToken = ring[0];
+    pos = 0;
+    read = 1;
     previousToken = null;
   }
   //-----------------------------------------
@@ -368,41 +1861,33 @@ class R2Parser implements R2Constants
   private void advance()
   {
     previousToken = currentToken; 
+    pos++;
 
-    // If next token is on token list, advance to it.
-    if (currentToken.next!=null)
-      currentToken = currentToken.next;
-
-    // Otherwise, get next token from token mgr and 
-    // put it on the list.
-    else
-      currentToken = 
-                  currentToken.next = tm.getNextToken();
+    // If next token has not been read yet, get it from
+    // token mgr into the next slot.
+    if (pos == read)
+      tm.getNextToken(ring[read++ & RING_MASK]);
+    currentToken = ring[pos & RING_MASK];
   }
   //-----------------------------------------
   // getToken(i) returns ith token without advancing
   // in token stream.  getToken(0) returns 
   // previousToken.  getToken(1) returns currentToken.
-  // getToken(2) returns next token, and so on.
+  // getToken(2) returns next token, and so on, up to
+  // getToken(RING_SIZE - 2).
   //
   private Token getToken(int i)
   {
     if (i <= 0)
       return previousToken;
+    if (i > RING_SIZE - 2)
+      throw new RuntimeException(
+                    "Lookahead of " + i + " tokens too far");
 
-    Token t = currentToken;
-    for (int j = 1; j < i; j++)  // loop to ith token
-    {
-      // if next token is on token list, move t to it
-      if (t.next != null)
-        t = t.next;
-
-      // Otherwise, get next token from token mgr and 
-      // put it on the list.
-      else
-        t = t.next = tm.getNextToken();
-    }
-    return t;
+    // read tokens up to the ith one
+    while (read - pos < i)
+      tm.getNextToken(ring[read++ & RING_MASK]);
+    return ring[(pos + i - 1) & RING_MASK];
   }
   //-----------------------------------------
   // If the kind of the current token matches the
@@ -424,6 +1909,7 @@ class R2Parser implements R2Constants
   //-----------------------------------------
   private void program()
   {
+    trace.rule("program", currentToken);
     statementList();
     cg.endCode();
     if (currentToken.kind != EOF)
@@ -432,27 +1918,32 @@ class R2Parser implements R2Constants
   //--R2---------------------------------------
   private void statementList()
   {
-    switch(currentToken.kind)
+    // one statement per pass, so the stack does not grow
+    // with the number of statements
+    while (true)
     {
-      case ID:
-      case PRINTLN:
-      case PRINT:
-      case SEMICOLON:
-      case LEFTCURLYBRACKET:
-        statement();
-        statementList();
-        break;
-      case EOF:
-      case RIGHTCURLYBRACKET:
-        ;
-        break;
-      default:
-        throw genEx("Expecting statement or <EOF>");
+      trace.rule("statementList", currentToken);
+      switch(currentToken.kind)
+      {
+        case ID:
+        case PRINTLN:
+        case PRINT:
+        case SEMICOLON:
+        case LEFTCURLYBRACKET:
+          statement();
+          break;
+        case EOF:
+        case RIGHTCURLYBRACKET:
+          return;
+        default:
+          throw genEx("Expecting statement or <EOF>");
+      }
     }
   }
   //--R2---------------------------------------
   private void statement()
   {
+    trace.rule("statement", currentToken);
     switch(currentToken.kind)
     {
        case ID: 
@@ -477,12 +1968,13 @@ class R2Parser implements R2Constants
   //-----------------------------------------
   private void assignmentStatement()
   {
+    trace.rule("assignmentStatement", currentToken);
     Token t;
     int left, expVal;
 
     t = currentToken;
     consume(ID);
-    left  = st.enter(t.image, "0", true);
+    left  = st.enter(t.image, R2SymTab.VARIABLE, 0);
     consume(ASSIGN);
     expVal = expr();
     cg.assign(left, expVal);
@@ -491,6 +1983,7 @@ class R2Parser implements R2Constants
   //-----------------------------------------
   private void printlnStatement()
   {
+    trace.rule("printlnStatement", currentToken);
     int expVal;
 
     consume(PRINTLN);
@@ -503,6 +1996,7 @@ class R2Parser implements R2Constants
 //--R2---------------------------------------
 private void printStatement()
 {
+  trace.rule("printStatement", currentToken);
     int expVal;
 
     consume(PRINT);
@@ -515,168 +2009,318 @@ private void printStatement()
    //--R2---------------------------------------
    private void nullStatement()
    {
+     trace.rule("nullStatement", currentToken);
      consume(SEMICOLON);
    }
     //--R2---------------------------------------
    private void compoundStatement()
    {
+     trace.rule("compoundStatement", currentToken);
      consume(LEFTCURLYBRACKET);
      statementList();
      consume(RIGHTCURLYBRACKET);
    }
   //-----------------------------------------
+  // Expressions are parsed by precedence climbing, with
+  // pending operators and "(" kept on an explicit stack
+  // instead of the Java stack, so neither long operator
+  // chains nor deep nesting can overflow it.  Code is 
+  // generated in the same order as recursive descent on
+  //   expr   -> term (("+" | "-") term)*
+  //   term   -> factor (("*" | "/") factor)*
+  //   factor -> UNSIGNED | "+" UNSIGNED | "-" UNSIGNED
+  //           | ID | "(" expr ")"
+  //
   private int expr()
   {
-    int left, expVal;
+    trace.rule("expr", currentToken);
+    opTop = 0;
+    parens = 0;
+    valueTop = 0;
+    while (true)
+    {
+      pushValue(factor());    // up to and including operand
 
-    left  = term();
-    expVal = termList(left);
-    return expVal;
+      // operators, and ")"s, after the operand
+      while (true)
+      {
+        int kind = currentToken.kind;
+        if (kind == PLUS || kind == MINUS || 
+            kind == TIMES || kind == DIV)
+        {
+          reduce(precedence(kind));
+          push(kind);
+          consume(kind);
+          break;                 // on to next operand
+        }
+        else if (kind == RIGHTPAREN && parens > 0)
+        {
+          reduce(0);             // back to the "("
+          opTop--;
+          parens--;
+          consume(RIGHTPAREN);
+        }
+        else if (kind == RIGHTPAREN || kind == SEMICOLON)
+        {
+          if (parens > 0)
+            throw genEx("Expecting " + tokenImage[RIGHTPAREN]);
+          reduce(0);
+          return values[0];
+        }
+        else
+          throw genEx("Expecting op, \")\", or \";\"");
+      }
+    }
   }
   //-----------------------------------------
-  private int termList(int left)
+  // Generate code for the operators on top of ops whose
+  // precedence is at least min, stopping at a "(".  Each
+  // replaces the top two values with its result.
+  //
+  private void reduce(int min)
   {
-    int right, temp, expVal;
-
-    switch(currentToken.kind)
+    int left, right, temp;
+    while (opTop > 0 && ops[opTop - 1] != LEFTPAREN &&
+                           precedence(ops[opTop - 1]) >= min)
     {
-      case PLUS:
-        consume(PLUS);
-        right = term();
-        temp = cg.add(left, right);   // emits ld/add/st
-        expVal = termList(temp);
-        return expVal;
-    case MINUS:
-        consume(MINUS);
-        right = term();
-        temp = cg.sub(left, right);   // emits ld/add/st
-        expVal = termList(temp);
-        return expVal;
-      case RIGHTPAREN:
-      case SEMICOLON:
-        ;
-        return left;     // do this at end of expression
-      default:
-        throw genEx("Expecting \"+\", \")\", or \";\"");
+      int op = ops[--opTop];
+      right = values[--valueTop];
+      left = values[--valueTop];
+      temp = fold(op, left, right);
+      if (temp < 0)
+        switch(op)
+        {
+          case PLUS:
+            temp = cg.add(left, right);   // emits ld/add/st
+            break;
+          case MINUS:
+            temp = cg.sub(left, right);   // emits ld/sub/st
+            break;
+          case TIMES:
+            temp = cg.mult(left, right); //emits ld/mult/st
+            break;
+          default:
+            temp = cg.div(left, right);  //emits ld/div/st
+            break;
+        }
+      pushValue(temp);
     }
   }
   //-----------------------------------------
-  private int term()
+  private int precedence(int kind)
   {
-    int left, termVal;
-
-    left = factor();
-    termVal = factorList(left);
-    return termVal;
+    return kind == TIMES || kind == DIV ? 2 : 1;
   }
   //-----------------------------------------
-  private int factorList(int left)
+  private void push(int kind)
   {
-    int right, temp, termVal;
-
-    switch(currentToken.kind)
-    {
-      case TIMES:
-        consume(TIMES);
-        right = factor();
-        temp = cg.mult(left, right);  //emits ld/mult/st
-        termVal = factorList(temp);
-        return termVal;
-    case DIV:
-        consume(DIV);
-        right = factor();
-        temp = cg.div(left, right);  //emits ld/mult/st
-        termVal = factorList(temp);
-        return termVal;
-      case PLUS:
-      case MINUS:
-      case RIGHTPAREN:
-      case SEMICOLON:
-        ;
-        return left;           // do this at end of term
-      default:
-        throw genEx("Expecting op, \")\", or \";\"");
-    }
+    if (opTop == ops.length)
+      ops = Arrays.copyOf(ops, 2 * opTop);
+    ops[opTop++] = kind;
   }
   //-----------------------------------------
+  private void pushValue(int index)
+  {
+    if (valueTop == values.length)
+      values = Arrays.copyOf(values, 2 * valueTop);
+    values[valueTop++] = index;
+  }
+  //-----------------------------------------
+  // Parse a factor up to its first operand, stacking any
+  // "(" before it, and return the operand's index.
+  //
   private int factor()
   {  
     Token t;
-    int index;
 
-    switch(currentToken.kind)
+    while (true)
+    {
+      trace.rule("factor", currentToken);
+      switch(currentToken.kind)
+      {
+        case UNSIGNED:
+          t = currentToken;
+          consume(UNSIGNED);
+          return st.enterLiteral(literal(t.image));
+        case PLUS:
+          consume(PLUS);
+          t = currentToken;
+          consume(UNSIGNED);
+          return st.enterLiteral(literal(t.image));
+        case MINUS:
+          consume(MINUS);
+          t = currentToken;
+          consume(UNSIGNED);
+          return st.enterLiteral(-literal(t.image));
+        case ID:
+          t = currentToken;
+          consume(ID);
+          return st.enter(t.image, R2SymTab.VARIABLE, 0);
+        case LEFTPAREN:
+          consume(LEFTPAREN);
+          push(LEFTPAREN);
+          parens++;
+          break;
+        default:
+          throw genEx("Expecting factor");
+      }
+    }
+  }
+  //-----------------------------------------
+  // If both operands are literals, compute op on them at
+  // compile time with 16-bit wraparound and return the
+  // index of the literal holding the result.  Otherwise,
+  // return -1 so the caller emits code for op.
+  //
+  private int fold(int op, int left, int right)
+  {
+    if (!st.isLiteral(left) || !st.isLiteral(right))
+      return -1;
+
+    int x = st.getValue(left);
+    int y = st.getValue(right);
+    int result;
+
+    switch(op)
     {
-      case UNSIGNED:
-        t = currentToken;
-        consume(UNSIGNED);
-        index  = st.enter("@" + t.image, t.image, true);
-        return index;
       case PLUS:
-        consume(PLUS);
-        t = currentToken;
-        consume(UNSIGNED);
-        index  = st.enter("@" + t.image, t.image, true);
-        return index;
+        result = x + y;
+        break;
       case MINUS:
-        consume(MINUS);
-        t = currentToken;
-        consume(UNSIGNED);
-        index = st.enter(
-                   "@_" + t.image, "-" + t.image, true);
-        return index;
-      case ID:
-        t = currentToken;
-        consume(ID);
-        index = st.enter(t.image, "0", true);
-        return index;
-      case LEFTPAREN:
-        consume(LEFTPAREN);
-        index = expr();
-        consume(RIGHTPAREN);
-        return index;
+        result = x - y;
+        break;
+      case TIMES:
+        result = x * y;
+        break;
+      case DIV:
+        if (y == 0)          // leave it to run time
+          return -1;
+        result = x / y;
+        break;
       default:
-        throw genEx("Expecting factor");
+        return -1;
     }
+    return st.enterLiteral((short)result);
+  }
+  //-----------------------------------------
+  // Value of an unsigned literal, wrapped to 16 bits as it
+  // would be in memory.
+  //
+  private int literal(String image)
+  {
+    int v = 0;
+    for (int i = 0; i < image.length(); i++)
+      v = (v * 10 + image.charAt(i) - '0') & 0xffff;
+    return (short)v;
   }
 }                                     // end of R2Parser
 //======================================================
 class R2CodeGen
 {
-  private PrintWriter outFile;
+  private static final String LINE_MARK = "\0";
+  private R2Output outFile;
   private R2SymTab st;
+
+  // The whole program is recorded as quads and code is
+  // emitted from them in endCode, when every read of 
+  // every value is known.  An expression result is a 
+  // value temp @vN, which is given a real temp @tN only
+  // if it has to be stored.
+  private ArrayList<R2Quad> quads;
+  private int valueIndex;
+  private HashMap<String, Integer> values;   // expr->@vN
+  private HashMap<Integer, Integer> versions;// times set
+
+  // used while emitting code
+  private boolean ended;    // quads written
+  private int[] reads;      // reads left of each value
+  private int[] realTemp;   // @tN holding each value
   private int tempIndex;
+  private ArrayDeque<Integer> freeTemps; // temps read
+  private int accIndex;     // symbol whose value is in ac
+  private int pendingTemp;  // value in ac not yet stored
+
+  // Size in words of each instruction, and of a dw, on 
+  // the target, as the assembler lays them out (see the 
+  // LOC column of S2.lst).  Rewrites that trade one 
+  // instruction sequence for another use these to check 
+  // that the new sequence is smaller.  Nothing in the 
+  // target's definition gives execution times, so they
+  // are not weighed.
+  private static final String[] COST_OP = 
+          {"ld", "st", "add", "sub", "mult", "div", "dw"};
+  private static final int[] COST_SIZE = 
+          {   1,    1,     1,     1,      1,     1,    1};
   //-----------------------------------------
-  public R2CodeGen(PrintWriter outFile, R2SymTab st)
+  public R2CodeGen(R2Output outFile, R2SymTab st)
   {
     this.outFile = outFile;
     this.st = st;
+    quads = new ArrayList<R2Quad>();
+    valueIndex = 0;
+    values = new HashMap<String, Integer>();
+    versions = new HashMap<Integer, Integer>();
     tempIndex = 0;
+    freeTemps = new ArrayDeque<Integer>();
+    accIndex = -1;          // ac holds nothing useful yet
+    pendingTemp = -1;
     outFile.println("          !register");
   }
   //-----------------------------------------
   private void emitInstruction(String op)
   {
-    outFile.printf("          %-4s%n", op); 
+    outFile.instruction(op, null); 
   }
   //-----------------------------------------
   private void emitInstruction(String op, String opnd)
   {           
-    outFile.printf("          %-4s      %s%n", op,opnd); 
+    outFile.instruction(op, opnd); 
   }
   //-----------------------------------------
+  // Only symbols that emitted code refers to get a dw, so
+  // literals folded away by the parser take no space.
+  //
   private void emitInstruction(String op, int opndIndex)
   {           
+    if (isValueTemp(opndIndex))
+      opndIndex = realTemp[opndIndex];
+    st.setNeedsdw(opndIndex);
     emitInstruction(op, st.getSymbol(opndIndex)); 
   }
   //-----------------------------------------
   private void emitdw(String label, String value)
   {           
-    outFile.printf(
-            "%-9s dw         %s%n", label + ":", value);
+    outFile.dw(label, value);
+  }
+  //-----------------------------------------
+  // Source lines and token traces are recorded with the
+  // quads so that they stay next to the code for them.
+  //
+  public void emitComment(String line)
+  {
+    quads.add(new R2Quad(line));
+  }
+  //-----------------------------------------
+  // In map listing mode, a source line is marked in 
+  // place of its echo, so the map can give the line its
+  // code starts on.
+  //
+  public void emitLineMark(int lineNumber)
+  {
+    emitComment(LINE_MARK + lineNumber);
+  }
+  //-----------------------------------------
+  private void writeComment(String line)
+  {
+    if (line.startsWith(LINE_MARK))
+      outFile.mark(Integer.parseInt(line.substring(1)));
+    else
+      outFile.println(line);
   }
   //-----------------------------------------
   public void endCode()
   {
+    emitQuads(true);
     outFile.println();
     outFile.println("          halt");
 
@@ -684,68 +2328,447 @@ class R2CodeGen
     // emit a dw if corresponding needsdw value is true
     for (int i=0; i < size; i++) 
        if (st.getNeedsdw(i))
-          emitdw(st.getSymbol(i), st.getdwValue(i));
+          emitdw(st.getSymbol(i), "" + st.getValue(i));
+  }
+  //-----------------------------------------
+  // After a syntax error, write the listing and the code
+  // for what was parsed before it, which the error 
+  // message then follows.  The program is incomplete, so
+  // nothing is removed as dead.
+  //
+  public void endCodeAtError()
+  {
+    if (!ended)
+      emitQuads(false);
+  }
+  //-----------------------------------------
+  private void emitQuads(boolean complete)
+  {
+    ended = true;
+    countReads(complete);
+    for (R2Quad q : quads)
+      emitQuad(q);
+    flush();
+  }
+  //-----------------------------------------
+  // Count the reads of each value, working backwards so
+  // that a value nothing reads is marked dead before its
+  // own operands are counted.  The same pass tracks which
+  // variables are live, i.e., read before they are next
+  // assigned.  An assignment to a variable that is not 
+  // live is a dead store, and the value it stores loses
+  // that read.  Nothing is live at the end of the program.
+  // A div that may divide by 0 is kept even if nothing
+  // reads it, since it stops the program.  If the program
+  // is not complete, nothing is marked dead.
+  //
+  private void countReads(boolean complete)
+  {
+    int size = st.getSize();
+    reads = new int[size];
+    realTemp = new int[size];
+    Arrays.fill(realTemp, -1);
+    boolean[] live = new boolean[size];
+
+    for (int i = quads.size() - 1; i >= 0; i--)
+    {
+      R2Quad q = quads.get(i);
+      if (!complete)
+        q.dead = false;
+      else if (q.op.equals("assign"))
+      {
+        if (!live[q.result])
+          q.dead = true;
+        live[q.result] = false;
+      }
+      else if (q.isOperation() && reads[q.result] == 0 &&
+                                               !mayStop(q))
+        q.dead = true;
+
+      if (q.dead)
+        continue;
+      if (q.left >= 0)
+      {
+        reads[q.left]++;
+        live[q.left] = true;
+      }
+      if (q.right >= 0)
+      {
+        reads[q.right]++;
+        live[q.right] = true;
+      }
+    }
+  }
+  //-----------------------------------------
+  // True for a div whose divisor is not a nonzero literal.
+  //
+  private boolean mayStop(R2Quad q)
+  {
+    if (!q.op.equals("div"))
+      return false;
+    Integer divisor = valueOf(q.right);
+    return divisor == null || divisor == 0;
+  }
+  //-----------------------------------------
+  private void emitQuad(R2Quad q)
+  {
+    if (q.dead)
+      return;
+
+    if (q.op.equals("comment"))
+      writeComment(q.comment);
+
+    else if (q.op.equals("assign"))
+    {
+      load(q.left);
+      emitInstruction("st", q.result);
+      read(q.left);
+      if (pendingTemp != q.left)  // value not needed again
+        accIndex = q.result;      // so track result in ac
+    }
+
+    else if (q.op.equals("println"))
+    {
+      load(q.left);
+      emitInstruction("dout");
+      read(q.left);
+      flush();
+      emitInstruction("ldc", "'\\n'");
+      emitInstruction("aout");
+      accIndex = -1;          // ldc overwrote ac
+    }
+
+    else if (q.op.equals("print"))
+    {
+      load(q.left);
+      emitInstruction("dout");
+      read(q.left);
+    }
+
+    else if (q.op.equals("mult") && 
+                   multByAdding(q.result, q.left, q.right))
+      ;
+
+    else
+      operate(q.op, q.result, q.left, q.right, 
+             q.op.equals("add") || q.op.equals("mult"));
+  }
+  //-----------------------------------------
+  // Emit the deferred st of the value in ac if anything
+  // still reads it.  Called when ac is about to be 
+  // overwritten.
+  //
+  private void flush()
+  {
+    if (pendingTemp >= 0 && reads[pendingTemp] > 0)
+      store();
+    pendingTemp = -1;
+  }
+  //-----------------------------------------
+  // Store the value in ac into a real temp.
+  //
+  private void store()
+  {
+    realTemp[pendingTemp] = getTemp();
+    emitInstruction("st", pendingTemp);
+    pendingTemp = -1;
+  }
+  //-----------------------------------------
+  // Get the value of the symbol at index into ac.  No ld
+  // is emitted if ac already holds it.
+  //
+  private void load(int index)
+  {
+    if (accIndex == index)
+      return;
+    flush();
+    emitInstruction("ld", index);
+    accIndex = index;
+  }
+  //-----------------------------------------
+  // Count one read of the symbol at index.  After the
+  // last read of a value, it never needs to be stored and
+  // its real temp can be reused.
+  //
+  private void read(int index)
+  {
+    if (!isValueTemp(index))
+      return;
+    reads[index]--;
+    if (reads[index] > 0)
+      return;
+    if (pendingTemp == index)
+      pendingTemp = -1;
+    if (realTemp[index] >= 0)
+      freeTemps.push(realTemp[index]);
+  }
+  //-----------------------------------------
+  // Emit op with the given operands.  For a commutative op
+  // whose right operand is already in ac, the operands are
+  // swapped to avoid spilling and reloading ac.  The result
+  // is left in ac with its st deferred.
+  //
+  private void operate(String op, int result, int left, 
+                          int right, boolean commutative)
+  {
+    if (commutative && accIndex == right && accIndex != left)
+    {
+      int t = left;
+      left = right;
+      right = t;
+    }
+    load(left);
+
+    // op overwrites left in ac.  If left is an unstored
+    // value that is read again, here as right or later,
+    // it has to be stored first.
+    if (pendingTemp == left && reads[left] > 1)
+      store();
+    pendingTemp = -1;
+    emitInstruction(op, right);
+    read(left);
+    read(right);
+
+    accIndex = result;
+    pendingTemp = result;
+  }
+  //-----------------------------------------
+  // Compute x*c as x+x+...+x if the cost table says that
+  // is smaller than ld/mult.  Counted on both sides: the 
+  // ld of x if it is not in ac, the st of x if it is an 
+  // unstored value (add needs it in memory, mult only if
+  // it is read again), and the dw c would need if nothing
+  // else uses it.  Return false if mult is no bigger.
+  //
+  private boolean multByAdding(int result, int left, 
+                                               int right)
+  {
+    int x, c;
+    if (st.isLiteral(right))
+    {
+      x = left;
+      c = right;
+    }
+    else if (st.isLiteral(left))
+    {
+      x = right;
+      c = left;
+    }
+    else
+      return false;
+
+    Integer n = valueOf(c);
+    if (n == null || n < 2 || n > 8)
+      return false;
+
+    int mult = 0;              // words
+    int adds = 0;
+    if (accIndex != x)
+    {
+      mult += size("ld", 1);
+      adds += size("ld", 1);
+    }
+    if (pendingTemp == x)
+    {
+      adds += size("st", 1);
+      if (reads[x] > 1)
+        mult += size("st", 1);
+    }
+    mult += size("mult", 1);
+    if (!st.getNeedsdw(c))
+      mult += size("dw", 1);   // for c
+    adds += size("add", n - 1);
+
+    if (adds >= mult)
+      return false;
+
+    load(x);
+    if (pendingTemp == x)
+      store();              // add needs x in memory
+    for (int i = 1; i < n; i++)
+      emitInstruction("add", x);
+    read(x);
+    accIndex = result;
+    pendingTemp = result;
+    return true;
+  }
+  //-----------------------------------------
+  // Size in words of count copies of op.
+  //
+  private int size(String op, int count)
+  {
+    for (int i = 0; i < COST_OP.length; i++)
+      if (COST_OP[i].equals(op))
+        return count * COST_SIZE[i];
+    throw new IllegalArgumentException("No size for " + op);
   }
   //-----------------------------------------
+  // Reuse a temp whose value has already been read, so
+  // the number of temps is the most ever live at once.
+  //
   private int getTemp()
   {
+    if (!freeTemps.isEmpty())
+      return freeTemps.pop();
+
     String temp = "@t" + tempIndex++;  // create temp
-    return st.enter(temp, "0", true);  // return index
+    return st.enter(temp, R2SymTab.TEMP, 0); // return index
+  }
+  //-----------------------------------------
+  private boolean isValueTemp(int index)
+  {
+    return index < reads.length && 
+                         st.getKind(index) == R2SymTab.VALUE;
+  }
+  //-----------------------------------------
+  // Return the value of the literal at index, or null if
+  // index is not a literal.
+  //
+  private Integer valueOf(int index)
+  {
+    if (!st.isLiteral(index))
+      return null;
+    return st.getValue(index);
+  }
+  //-----------------------------------------
+  private boolean isValue(int index, int value)
+  {
+    Integer v = valueOf(index);
+    return v != null && v == value;
+  }
+  //-----------------------------------------
+  // Return the value temp holding op applied to left and
+  // right, recording a quad to compute it unless the same
+  // expression has already been computed since the last
+  // assignment to any of its operands.  That is the case
+  // when the operands' versions still match.
+  //
+  private int value(String op, int left, int right, 
+                                     boolean commutative)
+  {
+    String l = left + "." + version(left);
+    String r = right + "." + version(right);
+    if (commutative && l.compareTo(r) > 0)
+    {
+      String t = l;
+      l = r;
+      r = t;
+    }
+    String key = op + " " + l + " " + r;
+
+    Integer known = values.get(key);
+    if (known != null)
+      return known;
+
+    int result = st.enter("@v" + valueIndex++, 
+                                        R2SymTab.VALUE, 0);
+    quads.add(new R2Quad(op, result, left, right));
+    values.put(key, result);
+    return result;
+  }
+  //-----------------------------------------
+  private int version(int index)
+  {
+    Integer v = versions.get(index);
+    return v == null ? 0 : v;
+  }
+  //-----------------------------------------
+  // Values computed from a variable's old contents no 
+  // longer match expressions that use it.
+  //
+  private void invalidate(int index)
+  {
+    versions.put(index, version(index) + 1);
   }
   //-----------------------------------------
   public void assign(int left, int expVal)
   {
-    emitInstruction("ld", expVal);
-    emitInstruction("st", left);
+    quads.add(new R2Quad("assign", left, expVal, -1));
+    invalidate(left);
   }
   //-----------------------------------------
   public void println(int expVal)
   {
-    emitInstruction("ld", expVal);
-    emitInstruction("dout");
-    emitInstruction("ldc", "'\\n'");
-    emitInstruction("aout");
+    quads.add(new R2Quad("println", -1, expVal, -1));
   }
     //--R2---------------------------------------
     public void print(int expVal)
     {
-        emitInstruction("ld", expVal);
-        emitInstruction("dout");
+      quads.add(new R2Quad("print", -1, expVal, -1));
     }
   //-----------------------------------------
+  // add, sub, mult and div first apply the algebraic
+  // identities x+0 = 0+x = x-0 = x*1 = 1*x = x/1 = x and
+  // x-x = x*0 = 0*x = 0, which need no code at all.  
+  //
   public int add(int left, int right)
   {
-    emitInstruction("ld", left);
-    emitInstruction("add", right);
-    int temp = getTemp();
-    emitInstruction("st", temp);
-    return temp;
+    if (isValue(right, 0))
+      return left;
+    if (isValue(left, 0))
+      return right;
+    return value("add", left, right, true);
   }
 //--R2---------------------------------------
     public int sub(int left, int right)
     {
-      emitInstruction("ld", left);
-      emitInstruction("sub", right);
-      int temp = getTemp();
-      emitInstruction("st", temp);
-      return temp;
+      if (isValue(right, 0))
+        return left;
+      if (left == right)       // same variable
+        return st.enterLiteral(0);
+      return value("sub", left, right, false);
     }
   //-----------------------------------------
   public int mult(int left, int right)
   {
-    emitInstruction("ld", left);
-    emitInstruction("mult", right);
-    int temp = getTemp();
-    emitInstruction("st", temp);
-    return temp;
+    if (isValue(right, 1))
+      return left;
+    if (isValue(left, 1))
+      return right;
+    if (isValue(left, 0) || isValue(right, 0))
+      return st.enterLiteral(0);  // operands become dead
+    return value("mult", left, right, true);
   }
 //--R2---------------------------------------
     public int div(int left, int right)
     {
-      emitInstruction("ld", left);
-      emitInstruction("div", right);
-      int temp = getTemp();
-      emitInstruction("st", temp);
-      return temp;
+      if (isValue(right, 1))
+        return left;
+      return value("div", left, right, false);
     }
-}                                    // end of R2CodeGen
\ No newline at end of file
+}                                    // end of R2CodeGen
+//======================================================
+class R2Quad
+{
+  public String op;      // add, sub, mult, div, assign,
+                         // print, println or comment
+  public int result;     // -1 if none
+  public int left;       // -1 if none
+  public int right;      // -1 if none
+  public String comment; // line for a comment
+  public boolean dead;   // result never read, or a
+                         // dead store
+  //-----------------------------------------
+  public R2Quad(String op, int result, int left, 
+                                               int right)
+  {
+    this.op = op;
+    this.result = result;
+    this.left = left;
+    this.right = right;
+  }
+  //-----------------------------------------
+  public R2Quad(String comment)
+  {
+    this("comment", -1, -1, -1);
+    this.comment = comment;
+  }
+  //-----------------------------------------
+  // True for add, sub, mult and div, whose result is a
+  // value temp.
+  //
+  public boolean isOperation()
+  {
+    return result >= 0 && !op.equals("assign");
+  }
+}                                        // end of R2Quad
@@ -0,0 +1,6 @@
+x = 3;
+y = 4;
+println(x);
+print(y);
+z = (y + ;
+println(z);
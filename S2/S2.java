@@ -1,57 +1,798 @@
 // Hand-written S2 compiler
 import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
 //======================================================
 class S2
 {  
   public static void main(String[] args) throws 
                                              IOException
   {
-    System.out.println("S2 compiler written by John Berean");
+    // -serve=file runs a compile daemon on a Unix-domain
+    // socket at file, which only its owner can connect to;
+    // -connect=file sends the rest of the command line to
+    // it and exits with its status.
+    if (args.length == 1 && args[0].startsWith("-serve="))
+    {
+      new S2Daemon(Paths.get(args[0].substring(7))).serve();
+      return;
+    }
+    int status;
+    if (args.length > 0 && args[0].startsWith("-connect="))
+      status = S2Daemon.request(Paths.get(args[0].substring(9)),
+                     Arrays.copyOfRange(args, 1, args.length));
+    else
+      status = run(args, null, System.out, System.err);
+    if (status != 0)
+      System.exit(status);
+  }
+  //-----------------------------------------
+  // Carry out one command line, relative to directory dir
+  // (null for the current one).  Returns the exit status.
+  //
+  static int run(String[] args, File dir, PrintStream out, 
+                        PrintStream err) throws IOException
+  {
+    out.println("S2 compiler written by John Berean");
 
-    if (args.length != 1)
+    S2Options options = new S2Options();
+    options.dir = dir;
+    int argIndex = 0;
+    try
     {
-      System.err.println("Wrong number cmd line args");  
-      System.exit(1);
+      argIndex = options.parse(args);
     }
+    catch (IllegalArgumentException e)
+    {
+      err.println(e.getMessage());
+      return 1;
+    }
+    if (options.cacheDir != null)
+      options.cache = S2Cache.open(
+                          new File(options.path(options.cacheDir)), 
+                          options.cacheSize);
 
-    // set to true to debug token manager
-    boolean debug = true;
+    if (options.batch)
+    {
+      if (argIndex == args.length)
+      {
+        err.println("No source files for batch");  
+        return 1;
+      }
+      int failed = compileBatch(
+            Arrays.copyOfRange(args, argIndex, args.length), 
+                                        options, out, err);
+      if (options.cacheStats)
+        options.cache.printStats(out);
+      return failed > 0 ? 1 : 0;
+    }
+
+    if (argIndex != args.length - 1)
+    {
+      err.println("Wrong number cmd line args");  
+      return 1;
+    }
 
+    String error = compile(args[argIndex], options);
+    if (error != null)
+    {
+      err.println(error);
+      return 1;
+    }
+    if (options.cacheStats)
+      options.cache.printStats(out);
+    return 0;
+  }
+  //-----------------------------------------
+  // Compile baseName.s to baseName.a with its own symbol
+  // table, token manager, code generator and parser.
+  // Returns null, or the error message, which is also
+  // written to the .a file.
+  //
+  static String compile(String baseName, S2Options options)
+                                        throws IOException
+  {
     // build the input and output file names
-    String inFileName = args[0] + ".s";
-    String outFileName = args[0] + ".a";
+    String inFileName = options.path(baseName + ".s");
+    String outFileName = options.path(baseName + ".a");
+
+    String mapFileName = options.listing == S2Output.MAP ? 
+                        options.path(baseName + ".map") : null;
+
+    // reuse the output of an identical earlier compile
+    String key = null;
+    if (options.cache != null && options.traceFileName == null)
+    {
+      key = options.cache.key(inFileName, options.key());
+      if (key != null && 
+          options.cache.fetch(key, outFileName, mapFileName))
+        return null;
+    }
 
     // construct file objects
-    Scanner inFile = new Scanner(new File(inFileName));
-    PrintWriter outFile = new PrintWriter(outFileName);
+    S2SourceReader inFile = 
+                   new S2SourceReader(new File(inFileName));
+    S2Output outFile = new S2Output(outFileName, mapFileName);
 
     // identify compiler/author in the output file
     outFile.println("; from S2 compiler written by John Berean");
 
     // construct objects that make up compiler
     S2SymTab st = new S2SymTab();
-    S2TokenMgr tm =  new S2TokenMgr(inFile, outFile, debug);
     S2CodeGen cg = new S2CodeGen(outFile, st);
-    S2Parser parser = new S2Parser(st, tm, cg);
+    S2Trace trace = new S2Trace(options.traceLevel, cg, 
+                      options.traceFileName == null ? null : 
+                      options.path(options.traceFileName));
+    S2TokenMgr tm = new S2TokenMgr(inFile, st, cg, trace, 
+                                          options.listing);
 
-    // parse and translate
+    // parse and translate, a big source in parts on all
+    // cores if it can be cut into parts
+    String error = null;
     try
     {
-      parser.parse();
+      if (!options.parallel || options.traceFileName != null ||
+          !S2Parallel.generate(inFile, cg, options))
+        new S2Parser(st, tm, cg, trace).parse();
     }      
     catch (RuntimeException e) 
     {
-      System.err.println(e.getMessage());
-      outFile.println(e.getMessage());
-      outFile.close();
-      System.exit(1);
+      error = e.getMessage();
+      cg.endCodeAtError();
+      outFile.println(error);
     }
 
     outFile.close();
+    trace.close();
+    if (key != null && error == null)
+      options.cache.store(key, outFileName, mapFileName);
+    return error;
+  }
+  //-----------------------------------------
+  // Compile every named source concurrently on a fork-join
+  // pool.  A name is a base name, a .s file, or a directory
+  // standing for all the .s files in it.  Errors are
+  // reported per file in input order and do not stop the
+  // batch.  Returns the number of files that failed.
+  //
+  static int compileBatch(String[] names, S2Options options,
+                          PrintStream out, PrintStream err)
+  {
+    ArrayList<String> baseNames = new ArrayList<String>();
+    for (String name : names)
+    {
+      File dir = new File(options.path(name));
+      String[] sources = dir.isDirectory() ? 
+              dir.list((d, n) -> n.endsWith(".s")) : null;
+      if (sources == null)
+        baseNames.add(name.endsWith(".s") ? 
+                 name.substring(0, name.length() - 2) : name);
+      else
+      {
+        Arrays.sort(sources);
+        for (String s : sources)
+          baseNames.add(new File(name, 
+                 s.substring(0, s.length() - 2)).getPath());
+      }
+    }
+
+    int count = baseNames.size();
+    String[] errors = new String[count];
+    ForkJoinPool pool = new ForkJoinPool();
+    ArrayList<ForkJoinTask<?>> tasks = 
+                                new ArrayList<ForkJoinTask<?>>();
+    long start = System.nanoTime();
+    for (int i = 0; i < count; i++)
+    {
+      int f = i;
+      tasks.add(pool.submit(() ->
+      {
+        try
+        {
+          errors[f] = compile(baseNames.get(f), options);
+        }
+        catch (Throwable e)   // a stack overflow too
+        {
+          errors[f] = e.toString();
+        }
+      }));
+    }
+    for (ForkJoinTask<?> task : tasks)
+      task.join();
+    long wall = System.nanoTime() - start;
+    pool.shutdown();
+
+    int failed = 0;
+    for (int i = 0; i < count; i++)
+      if (errors[i] != null)
+      {
+        failed++;
+        err.println(baseNames.get(i) + ".s: " + errors[i]);
+      }
+
+    double ms = Math.max(wall / 1e6, 1e-3);
+    out.printf("%d files, %d failed, %d threads%n",
+               count, failed, pool.getParallelism());
+    out.printf("%.1f ms wall, %.1f files/s, %.3f ms/file%n", 
+               ms, count * 1000 / ms, ms / Math.max(count, 1));
+    return failed;
   }
 }                                           // end of S2
 //======================================================
+class S2Options
+{
+  int traceLevel = S2Trace.TOKENS;
+  String traceFileName = null;
+  int listing = S2Output.FULL;
+  boolean batch = false;
+  boolean parallel = false;
+  String cacheDir = null;
+  long cacheSize = 64 << 20;          // in bytes
+  boolean cacheStats = false;
+  S2Cache cache = null;         // opened from cacheDir
+  File dir = null;              // null for current one
+  //-----------------------------------------
+  // Options come before the base name(s):
+  //   -trace=level       tokens (default) or parse
+  //   -tracefile=name    write trace to binary file name
+  //   -listing=mode      full (default), none or map
+  //   -batch             compile many sources concurrently
+  //   -parallel          generate code on all cores
+  //   -cache=dir         reuse output of unchanged sources
+  //   -cachesize=mb      evict past this size (default 64)
+  //   -cachestats        display cache hits and misses
+  // Returns the index of the first argument that is not
+  // an option.
+  //
+  public int parse(String[] args)
+  {
+    int argIndex = 0;
+    for (; argIndex < args.length && 
+                 args[argIndex].startsWith("-"); argIndex++)
+    {
+      String arg = args[argIndex];
+      if (arg.startsWith("-trace="))
+        traceLevel = S2Trace.getLevel(arg.substring(7));
+      else if (arg.startsWith("-tracefile="))
+        traceFileName = arg.substring(11);
+      else if (arg.startsWith("-listing="))
+        listing = S2Output.getListing(arg.substring(9));
+      else if (arg.equals("-batch"))
+        batch = true;
+      else if (arg.equals("-parallel"))
+        parallel = true;
+      else if (arg.startsWith("-cache="))
+        cacheDir = arg.substring(7);
+      else if (arg.startsWith("-cachesize="))
+        cacheSize = Long.parseLong(arg.substring(11)) << 20;
+      else if (arg.equals("-cachestats"))
+        cacheStats = true;
+      else
+        throw new IllegalArgumentException(
+                                "Unknown option " + arg);
+    }
+    if (batch && traceFileName != null)
+      throw new IllegalArgumentException(
+                        "-tracefile cannot be used with -batch");
+    if (cacheStats && cacheDir == null)
+      throw new IllegalArgumentException(
+                        "-cachestats needs -cache");
+    return argIndex;
+  }
+  //-----------------------------------------
+  // The options that affect the output, for cache keys.
+  //
+  public String key()
+  {
+    return "S2 trace=" + traceLevel + " listing=" + listing;
+  }
+  //-----------------------------------------
+  // Resolve a file name against dir.
+  //
+  public String path(String name)
+  {
+    File file = new File(name);
+    if (dir == null || file.isAbsolute())
+      return name;
+    return new File(dir, name).getPath();
+  }
+}                                    // end of S2Options
+//======================================================
+// Long-lived compile service on a Unix-domain socket.  A
+// request makes the daemon write files as its owner, so
+// only the owner may connect: the socket is bound in a new
+// directory only the owner can enter, made owner-only, 
+// and then moved to where clients look for it.  Each 
+// request carries the dialect, the client's working 
+// directory and its command line; the reply carries the 
+// exit status and what the compiler wrote to stdout and
+// stderr.
+//
+class S2Daemon
+{
+  private Path path;
+  private ServerSocketChannel server;
+  private ExecutorService pool;
+  //-----------------------------------------
+  public S2Daemon(Path path) throws IOException
+  {
+    this.path = path.toAbsolutePath();
+    Path dir = Files.createTempDirectory(
+        this.path.getParent(), ".daemon", 
+        PosixFilePermissions.asFileAttribute(
+                  PosixFilePermissions.fromString("rwx------")));
+    Path socket = dir.resolve("socket");
+    server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+    server.bind(UnixDomainSocketAddress.of(socket));
+    Files.setPosixFilePermissions(socket, 
+                   PosixFilePermissions.fromString("rw-------"));
+    Files.move(socket, this.path, 
+                              StandardCopyOption.ATOMIC_MOVE);
+    Files.delete(dir);
+    Runtime.getRuntime().addShutdownHook(new Thread(() ->
+    {
+      try
+      {
+        Files.deleteIfExists(this.path);
+      }
+      catch (IOException e)
+      {
+      }
+    }));
+    pool = Executors.newCachedThreadPool();
+  }
+  //-----------------------------------------
+  // Accept requests until killed, each on its own thread
+  // with its own compiler objects.
+  //
+  public void serve() throws IOException
+  {
+    System.out.println("S2 daemon listening on " + path);
+    while (true)
+    {
+      SocketChannel channel = server.accept();
+      pool.execute(() -> handle(channel));
+    }
+  }
+  //-----------------------------------------
+  private void handle(SocketChannel channel)
+  {
+    try (SocketChannel s = channel)
+    {
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(Channels.newInputStream(s)));
+      DataOutputStream reply = new DataOutputStream(
+         new BufferedOutputStream(Channels.newOutputStream(s)));
+      String dialect = in.readUTF();
+      File dir = new File(in.readUTF());
+      String[] args = new String[in.readInt()];
+      for (int i = 0; i < args.length; i++)
+        args[i] = in.readUTF();
+
+      ByteArrayOutputStream outBytes = 
+                                  new ByteArrayOutputStream();
+      ByteArrayOutputStream errBytes = 
+                                  new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(outBytes, true);
+      PrintStream err = new PrintStream(errBytes, true);
+      int status = 1;
+      if (!dialect.equals("S2"))
+        err.println("Daemon compiles S2, not " + dialect);
+      else
+        try
+        {
+          status = S2.run(args, dir, out, err);
+        }
+        catch (Throwable e)   // status 1, as from the CLI
+        {
+          err.println(e);
+        }
+
+      reply.writeInt(status);
+      writeBytes(reply, outBytes.toByteArray());
+      writeBytes(reply, errBytes.toByteArray());
+      reply.flush();
+    }
+    catch (IOException e)
+    {
+      System.err.println("Request failed: " + e.getMessage());
+    }
+  }
+  //-----------------------------------------
+  // Send a command line to the daemon at path, copy its
+  // output to stdout and stderr, and return its status.
+  //
+  public static int request(Path path, String[] args) 
+                                        throws IOException
+  {
+    try (SocketChannel s = SocketChannel.open(
+                           UnixDomainSocketAddress.of(path)))
+    {
+      DataOutputStream request = new DataOutputStream(
+         new BufferedOutputStream(Channels.newOutputStream(s)));
+      request.writeUTF("S2");
+      request.writeUTF(System.getProperty("user.dir"));
+      request.writeInt(args.length);
+      for (String arg : args)
+        request.writeUTF(arg);
+      request.flush();
+
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(Channels.newInputStream(s)));
+      int status = in.readInt();
+      System.out.write(readBytes(in));
+      System.out.flush();
+      System.err.write(readBytes(in));
+      System.err.flush();
+      return status;
+    }
+  }
+  //-----------------------------------------
+  private static void writeBytes(DataOutputStream out, 
+                          byte[] bytes) throws IOException
+  {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+  //-----------------------------------------
+  private static byte[] readBytes(DataInputStream in) 
+                                        throws IOException
+  {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return bytes;
+  }
+}                                     // end of S2Daemon
+//======================================================
+// On-disk cache of compiled output, keyed by a hash of
+// the source bytes, the options that affect the output and
+// the compiler build.  Entries are files hash.a (and
+// hash.map) in the cache directory; past the size cap the
+// least recently used are evicted.
+//
+class S2Cache
+{
+  // one per directory, shared by batch and daemon compiles
+  private static final HashMap<File, S2Cache> caches = 
+                                  new HashMap<File, S2Cache>();
+
+  private File dir;
+  private long capacity;                  // in bytes
+  private long size;                      // in bytes
+  private LinkedHashMap<String, Long> entries;  // LRU first
+  private String build;
+  private long hits, misses, evictions;
+  //-----------------------------------------
+  public static synchronized S2Cache open(File dir, 
+                          long capacity) throws IOException
+  {
+    dir = dir.getCanonicalFile();
+    S2Cache cache = caches.get(dir);
+    if (cache == null)
+    {
+      cache = new S2Cache(dir);
+      caches.put(dir, cache);
+    }
+    cache.setCapacity(capacity);
+    return cache;
+  }
+  //-----------------------------------------
+  private S2Cache(File dir) throws IOException
+  {
+    this.dir = dir;
+    Files.createDirectories(dir.toPath());
+    entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    // rebuild the LRU order from modification times
+    File[] files = dir.listFiles();
+    Arrays.sort(files, 
+                Comparator.comparingLong(File::lastModified));
+    for (File file : files)
+    {
+      String name = file.getName();
+      int dot = name.indexOf('.');
+      if (name.endsWith(".tmp"))      // left by a crash
+        file.delete();
+      else if (dot > 0)
+      {
+        entries.merge(name.substring(0, dot), file.length(), 
+                                                  Long::sum);
+        size += file.length();
+      }
+    }
+
+    // a rebuilt compiler must not reuse old entries
+    URL classFile = S2Cache.class.getResource("S2.class");
+    build = classFile + "@" + 
+               classFile.openConnection().getLastModified();
+  }
+  //-----------------------------------------
+  private synchronized void setCapacity(long capacity)
+  {
+    this.capacity = capacity;
+    evict();
+  }
+  //-----------------------------------------
+  // Hash of the source file and options, or null if the
+  // source cannot be read.
+  //
+  public String key(String inFileName, String options)
+  {
+    try
+    {
+      byte[] source = Files.readAllBytes(Paths.get(inFileName));
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      md.update((build + "\n" + options + "\n").getBytes(
+                                   StandardCharsets.UTF_8));
+      return HexFormat.of().formatHex(md.digest(source));
+    }
+    catch (IOException | NoSuchAlgorithmException e)
+    {
+      return null;
+    }
+  }
+  //-----------------------------------------
+  // Copy the entry for key to the output files.  Returns
+  // false on a miss.
+  //
+  public boolean fetch(String key, String outFileName, 
+                                         String mapFileName)
+  {
+    Path entry = dir.toPath().resolve(key + ".a");
+    try
+    {
+      if (mapFileName != null)
+        Files.copy(dir.toPath().resolve(key + ".map"), 
+                   Paths.get(mapFileName), 
+                   StandardCopyOption.REPLACE_EXISTING);
+      Files.copy(entry, Paths.get(outFileName), 
+                 StandardCopyOption.REPLACE_EXISTING);
+      entry.toFile().setLastModified(
+                                  System.currentTimeMillis());
+    }
+    catch (IOException e)
+    {
+      synchronized (this)
+      {
+        misses++;
+      }
+      return false;
+    }
+    synchronized (this)
+    {
+      hits++;
+      if (entries.get(key) == null)   // added by another run
+        add(key, entry.toFile().length());
+    }
+    return true;
+  }
+  //-----------------------------------------
+  // Add the output files as the entry for key.  Failures
+  // only cost a later miss.
+  //
+  public void store(String key, String outFileName, 
+                                         String mapFileName)
+  {
+    try
+    {
+      long bytes = 0;
+      if (mapFileName != null)
+        bytes += put(Paths.get(mapFileName), key + ".map");
+      bytes += put(Paths.get(outFileName), key + ".a");
+      synchronized (this)
+      {
+        add(key, bytes);
+        evict();
+      }
+    }
+    catch (IOException e)
+    {
+    }
+  }
+  //-----------------------------------------
+  // Copy to a temporary file, force it to disk, then rename
+  // it into place, so a crash never leaves a partial entry.
+  //
+  private long put(Path from, String name) throws IOException
+  {
+    Path tmp = Files.createTempFile(dir.toPath(), name, ".tmp");
+    try
+    {
+      Files.copy(from, tmp, 
+                 StandardCopyOption.REPLACE_EXISTING);
+      try (FileChannel channel = 
+                FileChannel.open(tmp, StandardOpenOption.WRITE))
+      {
+        channel.force(true);
+      }
+      Files.move(tmp, dir.toPath().resolve(name), 
+                 StandardCopyOption.ATOMIC_MOVE);
+    }
+    finally
+    {
+      Files.deleteIfExists(tmp);
+    }
+    return Files.size(dir.toPath().resolve(name));
+  }
+  //-----------------------------------------
+  private void add(String key, long bytes)
+  {
+    Long old = entries.put(key, bytes);
+    size += bytes - (old == null ? 0 : old);
+  }
+  //-----------------------------------------
+  // Drop least recently used entries until under capacity.
+  // The .a file goes first, since it marks an entry present.
+  //
+  private void evict()
+  {
+    Iterator<Map.Entry<String, Long>> it = 
+                                 entries.entrySet().iterator();
+    while (size > capacity && it.hasNext())
+    {
+      Map.Entry<String, Long> entry = it.next();
+      new File(dir, entry.getKey() + ".a").delete();
+      new File(dir, entry.getKey() + ".map").delete();
+      size -= entry.getValue();
+      it.remove();
+      evictions++;
+    }
+  }
+  //-----------------------------------------
+  public synchronized void printStats(PrintStream out)
+  {
+    out.printf("cache: %d hits, %d misses, %d evictions, " +
+               "%d entries, %d of %d KB%n", hits, misses, 
+               evictions, entries.size(), size / 1024, 
+               capacity / 1024);
+  }
+}                                      // end of S2Cache
+//======================================================
+// Generates the code of a big source on all cores.  The
+// source is cut before lines that a scan for braces, 
+// parentheses and comments says begin a top-level 
+// statement, and each part is parsed with its own token
+// manager, symbol table and code generator on the 
+// fork-join pool.  A part must stop exactly where the 
+// next one starts, and none may have an error, or the 
+// source is compiled sequentially after all.  The parts'
+// statements and symbols are joined in order, so the 
+// code is what a sequential compile would have generated.
+//
+class S2Parallel
+{
+  private static final int MIN_PART = 1 << 14;   // chars
+  //-----------------------------------------
+  // Generate the code for inFile into cg.  Returns false,
+  // with cg untouched, if it was not done.
+  //
+  public static boolean generate(S2SourceReader inFile, 
+                         S2CodeGen cg, S2Options options)
+  {
+    int cores = Runtime.getRuntime().availableProcessors();
+    if (cores < 2)
+      return false;
+    inFile.readAll();
+    char[] text = inFile.getChars();
+    int count = inFile.getCount();
+    int parts = Math.min(count / MIN_PART, 4 * cores);
+    if (parts < 2)
+      return false;
+    ArrayList<Integer> lines = new ArrayList<Integer>();
+    ArrayList<Integer> offsets = new ArrayList<Integer>();
+    cut(text, count, parts, lines, offsets);
+    int n = lines.size();
+    if (n < 2)
+      return false;
+
+    S2CodeGen[] gens = new S2CodeGen[n];
+    ArrayList<ForkJoinTask<Boolean>> tasks = 
+                       new ArrayList<ForkJoinTask<Boolean>>();
+    for (int i = 0; i < n; i++)
+    {
+      int p = i;
+      tasks.add(ForkJoinTask.adapt(() ->
+      {
+        S2SymTab st = new S2SymTab();
+        gens[p] = new S2CodeGen(null, st);
+        gens[p].setPart(p + 1 < n ? lines.get(p + 1) : 0, 
+                                                    p > 0);
+        try
+        {
+          S2Trace trace = new S2Trace(options.traceLevel, 
+                                            gens[p], null);
+          S2TokenMgr tm = new S2TokenMgr(
+                 new S2SourceReader(inFile, offsets.get(p)), 
+                     st, gens[p], trace, options.listing);
+          tm.startAt(lines.get(p));
+          new S2Parser(st, tm, gens[p], trace).parse();
+        }
+        catch (IOException | RuntimeException e)
+        {
+          return false;
+        }
+        return gens[p].isComplete();
+      }));
+    }
+    ForkJoinTask.invokeAll(tasks);
+    for (ForkJoinTask<Boolean> task : tasks)
+      if (!task.join())
+        return false;
+
+    for (int p = 0; p < n; p++)
+      cg.join(gens[p]);
+    cg.endCode(n);
+    return true;
+  }
+  //-----------------------------------------
+  // Add to lines and offsets where to cut text into about
+  // parts parts, line 1 first.  A cut is made at the 
+  // first token of a line that starts outside any { } or
+  // ( ), after a ; or } or nothing.
+  //
+  private static void cut(char[] text, int count, 
+                     int parts, ArrayList<Integer> lines,
+                                  ArrayList<Integer> offsets)
+  {
+    lines.add(1);
+    offsets.add(0);
+    int next = count / parts;  // cut at a line from here
+    int line = 1;
+    int lineStart = 0;
+    boolean clean = true;      // line starts a statement
+    boolean first = true;      // no token on line yet
+    int braces = 0;
+    int parens = 0;
+    boolean ended = true;      // last token ends one
+    for (int i = 0; i < count; i++)
+    {
+      char c = text[i];
+      if (c == '\n' || c == '\r')
+      {
+        if (c == '\r' && i + 1 < count && text[i + 1] == '\n')
+          i++;
+        line++;
+        lineStart = i + 1;
+        clean = braces == 0 && parens == 0 && ended;
+        first = true;
+      }
+      else if (c == '/' && i + 1 < count && 
+                                        text[i + 1] == '/')
+      {
+        while (i + 1 < count && text[i + 1] != '\n' && 
+                                       text[i + 1] != '\r')
+          i++;
+      }
+      else if (!Character.isWhitespace(c))
+      {
+        if (first && clean && lineStart >= next)
+        {
+          lines.add(line);
+          offsets.add(lineStart);
+          next = (int)((long)lines.size() * count / parts);
+        }
+        first = false;
+        if (c == '{')
+          braces++;
+        else if (c == '}')
+          braces--;
+        else if (c == '(')
+          parens++;
+        else if (c == ')')
+          parens--;
+        ended = c == ';' || c == '}';
+      }
+    }
+  }
+}                                     // end of S2Parallel
+//======================================================
 interface S2Constants
 {
   // integers that identify token kinds
@@ -100,64 +841,1063 @@ interface S2Constants
 class S2SymTab
 {
   private ArrayList<String> symbol;
+  private int[] table;         // hash index into symbol
+  private String[] pool;       // interned names
+  private int poolSize;
+  //-----------------------------------------
+  public S2SymTab()
+  {
+    symbol = new ArrayList<String>();
+    table = new int[64];
+    pool = new String[64];
+  }
+  //-----------------------------------------
+  public int enter(String s)
+  {
+    int index = find(s);
+
+    // if s is not in symbol, then add it 
+    if (index < 0) 
+    {
+      index = symbol.size();
+      symbol.add(s);
+      insert(s, index);
+    }
+    return index;
+  }
+  //-----------------------------------------
+  public String getSymbol(int index)
+  {
+    return symbol.get(index);
+  }
+  //-----------------------------------------
+  public int getSize()
+  {
+    return symbol.size();
+  }
+  //-----------------------------------------
+  // Return the name in chars[start..start + length) as a
+  // String, always the same String for the same name, 
+  // and built only the first time the name is seen.  The
+  // token managers intern identifiers and numbers 
+  // straight from the source buffer.
+  //
+  public String intern(char[] chars, int start, int length)
+  {
+    int h = 0;
+    for (int i = 0; i < length; i++)
+      h = 31 * h + chars[start + i];   // as String.hashCode
+    int mask = pool.length - 1;
+    int i = (h ^ (h >>> 16)) & mask;
+    for (; pool[i] != null; i = (i + 1) & mask)
+      if (matches(pool[i], chars, start, length))
+        return pool[i];
+
+    String s = new String(chars, start, length);
+    pool[i] = s;
+    if (2 * ++poolSize > pool.length)  // keep half empty
+    {
+      String[] old = pool;
+      pool = new String[2 * old.length];
+      mask = pool.length - 1;
+      for (String name : old)
+        if (name != null)
+        {
+          int j = hash(name) & mask;
+          while (pool[j] != null)
+            j = (j + 1) & mask;
+          pool[j] = name;
+        }
+    }
+    return s;
+  }
+  //-----------------------------------------
+  private static boolean matches(String s, char[] chars, 
+                                    int start, int length)
+  {
+    if (s.length() != length)
+      return false;
+    for (int i = 0; i < length; i++)
+      if (s.charAt(i) != chars[start + i])
+        return false;
+    return true;
+  }
+  //-----------------------------------------
+  // Return the index of s in symbol, or -1.  table is an
+  // open-addressing hash index into symbol: each slot holds
+  // an index + 1, or 0 if empty.  Linear probing.
+  //
+  private int find(String s)
+  {
+    int mask = table.length - 1;
+    for (int i = hash(s) & mask; table[i] != 0; 
+                                        i = (i + 1) & mask)
+      if (symbol.get(table[i] - 1).equals(s))
+        return table[i] - 1;
+    return -1;
+  }
+  //-----------------------------------------
+  // Record in table that s is at index.  Keeps table at 
+  // most half full.
+  //
+  private void insert(String s, int index)
+  {
+    if (2 * (index + 1) > table.length)
+    {
+      table = new int[2 * table.length];
+      for (int i = 0; i < index; i++)
+        insert(symbol.get(i), i);
+    }
+    int mask = table.length - 1;
+    int i = hash(s) & mask;
+    while (table[i] != 0)
+      i = (i + 1) & mask;
+    table[i] = index + 1;
+  }
+  //-----------------------------------------
+  private static int hash(String s)
+  {
+    int h = s.hashCode();
+    return h ^ (h >>> 16);
+  }
+}                                     // end of S2SymTab
+//======================================================
+// Writes the output file through a reusable byte buffer
+// and a FileChannel, in large blocks.  Instructions and
+// dw's are laid out from fixed-width templates, giving 
+// the same bytes printf gave, but without parsing a 
+// format for every line.
+//
+class S2Output
+{
+  // listing modes: echo each source line as a comment,
+  // no echo, or no echo but a map file giving the line
+  // of the output file where each source line's code
+  // starts
+  public static final int FULL = 0;
+  public static final int NONE = 1;
+  public static final int MAP = 2;
+  private static final String[] LISTINGS = 
+                                  {"full", "none", "map"};
+
+  private static final byte[] NEWLINE = 
+                     System.lineSeparator().getBytes();
+  private static final byte[] INDENT =     // before op
+                               "          ".getBytes();
+  private static final byte[] GAP =        // op to opnd
+                                   "      ".getBytes();
+  private static final byte[] DW =         // label to value
+                             " dw        ".getBytes();
+  private FileChannel channel;  // null for a slice
+  private ByteBuffer buffer;
+  private int lines;            // lines written
+  private S2Output map;          // null if no map
+  private int[] marks;    // a slice's source, line pairs
+  private int markCount;
+  //-----------------------------------------
+  public S2Output(String fileName, String mapFileName) 
+                                        throws IOException
+  {
+    channel = new FileOutputStream(fileName).getChannel();
+    buffer = ByteBuffer.allocate(65536);
+    if (mapFileName != null)
+    {
+      map = new S2Output(mapFileName, null);
+      map.println("; source line, output line");
+    }
+  }
+  //-----------------------------------------
+  private S2Output()
+  {
+    buffer = ByteBuffer.allocate(4096);
+  }
+  //-----------------------------------------
+  // An empty slice of this output, which grows in memory,
+  // may be filled on another thread, and is then written
+  // here by append.
+  //
+  public S2Output slice()
+  {
+    S2Output slice = new S2Output();
+    if (map != null)
+      slice.marks = new int[64];
+    return slice;
+  }
+  //-----------------------------------------
+  // Write slice here.  Its map lines are numbered from 
+  // the line it starts on here.
+  //
+  public void append(S2Output slice)
+  {
+    for (int i = 0; i < slice.markCount; i += 2)
+      map.println(slice.marks[i] + " " + 
+                              (lines + slice.marks[i + 1]));
+    try
+    {
+      drain();
+      slice.buffer.flip();
+      write(slice.buffer);
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(
+                "Error writing output: " + e.getMessage());
+    }
+    lines += slice.lines;
+  }
+  //-----------------------------------------
+  // Listing mode named by name, which is full, none or 
+  // map.
+  //
+  public static int getListing(String name)
+  {
+    for (int i = 0; i < LISTINGS.length; i++)
+      if (LISTINGS[i].equals(name))
+        return i;
+    throw new IllegalArgumentException(
+                          "Unknown listing mode " + name);
+  }
+  //-----------------------------------------
+  // Map sourceLine to the next line written.
+  //
+  public void mark(int sourceLine)
+  {
+    if (marks == null)
+    {
+      map.println(sourceLine + " " + (lines + 1));
+      return;
+    }
+    if (markCount == marks.length)
+      marks = Arrays.copyOf(marks, 2 * markCount);
+    marks[markCount++] = sourceLine;
+    marks[markCount++] = lines + 1;
+  }
+  //-----------------------------------------
+  public void println()
+  {
+    newLine();
+  }
+  //-----------------------------------------
+  public void println(String s)
+  {
+    print(s);
+    newLine();
+  }
+  //-----------------------------------------
+  // Same as printf("          %-4s      %s%n", op, opnd),
+  // or printf("          %-4s%n", op) if opnd is null.
+  //
+  public void instruction(String op, String opnd)
+  {
+    put(INDENT);
+    print(op);
+    pad(op.length(), 4);
+    if (opnd != null)
+    {
+      put(GAP);
+      print(opnd);
+    }
+    newLine();
+  }
+  //-----------------------------------------
+  // Same as printf("%-9s dw        %s%n", label + ":", value).
+  //
+  public void dw(String label, String value)
+  {
+    print(label);
+    put((byte)':');
+    pad(label.length() + 1, 9);
+    put(DW);
+    print(value);
+    newLine();
+  }
+  //-----------------------------------------
+  public void close()
+  {
+    if (map != null)
+      map.close();
+    try
+    {
+      drain();
+      channel.close();
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(
+                "Error writing output: " + e.getMessage());
+    }
+  }
+  //-----------------------------------------
+  // ASCII chars go straight into buffer; anything else 
+  // is encoded with the default charset, as PrintWriter
+  // does.
+  //
+  private void print(String s)
+  {
+    int length = s.length();
+    for (int i = 0; i < length; i++)
+    {
+      char c = s.charAt(i);
+      if (c >= 128)
+      {
+        put(s.substring(i).getBytes());
+        return;
+      }
+      put((byte)c);
+    }
+  }
+  //-----------------------------------------
+  private void newLine()
+  {
+    put(NEWLINE);
+    lines++;
+  }
+  //-----------------------------------------
+  private void pad(int length, int width)
+  {
+    for (int i = length; i < width; i++)
+      put((byte)' ');
+  }
+  //-----------------------------------------
+  private void put(byte b)
+  {
+    if (!buffer.hasRemaining())
+    {
+      if (channel == null)            // a slice grows
+        buffer = ByteBuffer.allocate(2 * buffer.capacity())
+                                       .put(buffer.flip());
+      else
+        drainChecked();
+    }
+    buffer.put(b);
+  }
+  //-----------------------------------------
+  private void put(byte[] bytes)
+  {
+    for (byte b : bytes)
+      put(b);
+  }
+  //-----------------------------------------
+  private void drainChecked()
+  {
+    try
+    {
+      drain();
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(
+                "Error writing output: " + e.getMessage());
+    }
+  }
+  //-----------------------------------------
+  private void drain() throws IOException
+  {
+    buffer.flip();
+    write(buffer);
+    buffer.clear();
+  }
+  //-----------------------------------------
+  private void write(ByteBuffer bytes) throws IOException
+  {
+    while (bytes.hasRemaining())
+      channel.write(bytes);
+  }
+}                                     // end of S2Output
+//======================================================
+// Reads the source file a line at a time into a reusable
+// char buffer, decoding with the default charset as
+// Scanner does.  Small files are read through a 
+// FileChannel and big ones are memory mapped.  Lines end
+// with \n, \r\n or \r.
+//
+class S2SourceReader
+{
+  private static final long MAP_SIZE = 1 << 20;  // bytes
+  private FileChannel channel;
+  private ByteBuffer bytes;
+  private boolean mapped;
+  private CharsetDecoder decoder;
+  private boolean endOfInput;  // everything decoded
+  private char[] buffer;       // decoded chars
+  private int count;           // chars in buffer
+  private int lineStart;       // current line is in
+  private int lineEnd;         //   buffer[lineStart..lineEnd)
+  private int next;            // start of next line
+  //-----------------------------------------
+  public S2SourceReader(File file) throws IOException
+  {
+    channel = new FileInputStream(file).getChannel();
+    mapped = channel.size() >= MAP_SIZE;
+    if (mapped)
+      bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                                           channel.size());
+    else
+    {
+      bytes = ByteBuffer.allocate(8192);
+      bytes.flip();                     // empty to start
+    }
+    decoder = Charset.defaultCharset().newDecoder();
+    decoder.onMalformedInput(CodingErrorAction.REPLACE);
+    decoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+    buffer = new char[65536];
+  }
+  //-----------------------------------------
+  // A reader of the lines of text, which has read all of
+  // its file, from offset start on.  The readers share
+  // the chars, so each may be used by its own thread.
+  //
+  public S2SourceReader(S2SourceReader text, int start)
+  {
+    buffer = text.buffer;
+    count = text.count;
+    endOfInput = true;
+    lineStart = lineEnd = next = start;
+  }
+  //-----------------------------------------
+  // Decode the rest of the file into the buffer.  Lines
+  // are still read from where they were.
+  //
+  public void readAll()
+  {
+    try
+    {
+      // room for all of it, so it is decoded in place
+      long size = endOfInput ? 0 : (long)(channel.size() * 
+                       (double)decoder.maxCharsPerByte()) + 1;
+      if (size > buffer.length && size < Integer.MAX_VALUE)
+        buffer = Arrays.copyOf(buffer, (int)size);
+      while (!endOfInput)
+        fill();
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(
+                 "Error reading source: " + e.getMessage());
+    }
+  }
+  //-----------------------------------------
+  // Move to the next line.  Return false at end of file.
+  //
+  public boolean nextLine()
+  {
+    try
+    {
+      lineStart = next;
+      int i = lineStart;
+      while (true)
+      {
+        while (i < count && buffer[i] != '\n' && 
+                                        buffer[i] != '\r')
+          i++;
+        if (i == count || 
+            (buffer[i] == '\r' && i + 1 == count))
+        {
+          if (!endOfInput)     // line may go on
+          {
+            i -= fill();
+            continue;
+          }
+          if (i == count && lineStart == count)
+            return false;
+        }
+        lineEnd = i;
+        next = i;
+        if (i < count)                  // skip line end
+        {
+          next++;
+          if (buffer[i] == '\r' && next < count && 
+                                      buffer[next] == '\n')
+            next++;
+        }
+        return true;
+      }
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(
+                 "Error reading source: " + e.getMessage());
+    }
+  }
+  //-----------------------------------------
+  // Char at column of the current line, or '\n' past its
+  // end.
+  //
+  public char charAt(int column)
+  {
+    int i = lineStart + column;
+    return i < lineEnd ? buffer[i] : '\n';
+  }
+  //-----------------------------------------
+  // The current line, after prefix.
+  //
+  public String getLine(String prefix)
+  {
+    return new StringBuilder(prefix.length() + 
+        lineEnd - lineStart).append(prefix).append(
+        buffer, lineStart, lineEnd - lineStart).toString();
+  }
+  //-----------------------------------------
+  // The buffer holding the current line, and where 
+  // column of the line is in it.  Valid until nextLine.
+  //
+  public char[] getChars()
+  {
+    return buffer;
+  }
+  //-----------------------------------------
+  public int offset(int column)
+  {
+    return lineStart + column;
+  }
+  //-----------------------------------------
+  // Number of chars decoded into the buffer.
+  //
+  public int getCount()
+  {
+    return count;
+  }
+  //-----------------------------------------
+  // Move the current line to the start of buffer, then
+  // decode more of the file after it.  Return how far 
+  // the line moved.
+  //
+  private int fill() throws IOException
+  {
+    int shift = lineStart;
+    System.arraycopy(buffer, lineStart, buffer, 0, 
+                                       count - lineStart);
+    count -= shift;
+    next -= shift;
+    lineStart = 0;
+    if (count == buffer.length)   // line fills buffer
+      buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+
+    CharBuffer chars = CharBuffer.wrap(buffer, count, 
+                                   buffer.length - count);
+    while (chars.position() == count && !endOfInput)
+    {
+      boolean last = mapped;
+      if (!mapped)
+      {
+        bytes.compact();
+        last = channel.read(bytes) < 0;
+        bytes.flip();
+      }
+      CoderResult result = 
+                         decoder.decode(bytes, chars, last);
+      if (last && result.isUnderflow())
+      {
+        decoder.flush(chars);
+        endOfInput = true;
+        channel.close();
+      }
+    }
+    count = chars.position();
+    return shift;
+  }
+}                               // end of S2SourceReader
+//======================================================
+// Traces tokens (level TOKENS), or tokens and the 
+// grammar rules entered (level PARSE), either into the
+// output file as comments or to a binary trace file that
+//   java S2Trace <trace file>
+// prints.  When the level is OFF a trace call is just a
+// compare.
+//
+class S2Trace
+{
+  public static final int OFF = 0;
+  public static final int TOKENS = 1;
+  public static final int PARSE = 2;
+  private static final String[] LEVELS = 
+                               {"off", "tokens", "parse"};
+
+  // record types in a binary trace file
+  private static final int TOKEN = 'T';
+  private static final int RULE = 'R';
+
+  private final int level;
+  private S2CodeGen cg;         // text trace goes here
+  private DataOutputStream out; // or here if not null
+  //-----------------------------------------
+  public S2Trace(int level, S2CodeGen cg, String fileName)
+                                        throws IOException
+  {
+    this.level = level;
+    this.cg = cg;
+    if (fileName != null && level > OFF)
+      out = new DataOutputStream(new BufferedOutputStream(
+                         new FileOutputStream(fileName)));
+  }
+  //-----------------------------------------
+  // Level named by name, which is off, tokens or parse.
+  //
+  public static int getLevel(String name)
+  {
+    for (int i = 0; i < LEVELS.length; i++)
+      if (LEVELS[i].equals(name))
+        return i;
+    throw new IllegalArgumentException(
+                          "Unknown trace level " + name);
+  }
+  //-----------------------------------------
+  public void token(Token t)
+  {
+    if (level < TOKENS)
+      return;
+    if (out == null)
+      cg.emitComment(formatToken(t.kind, t.beginLine, 
+         t.beginColumn, t.endLine, t.endColumn, t.image));
+    else
+      try
+      {
+        out.writeByte(TOKEN);
+        out.writeInt(t.kind);
+        out.writeInt(t.beginLine);
+        out.writeInt(t.beginColumn);
+        out.writeInt(t.endLine);
+        out.writeInt(t.endColumn);
+        out.writeUTF(t.image);
+      }
+      catch (IOException e)
+      {
+        throw new RuntimeException(
+                 "Error writing trace: " + e.getMessage());
+      }
+  }
+  //-----------------------------------------
+  // Rule entered, with t the current token.
+  //
+  public void rule(String name, Token t)
+  {
+    if (level < PARSE)
+      return;
+    if (out == null)
+      cg.emitComment(
+             formatRule(name, t.beginLine, t.beginColumn));
+    else
+      try
+      {
+        out.writeByte(RULE);
+        out.writeUTF(name);
+        out.writeInt(t.beginLine);
+        out.writeInt(t.beginColumn);
+      }
+      catch (IOException e)
+      {
+        throw new RuntimeException(
+                 "Error writing trace: " + e.getMessage());
+      }
+  }
+  //-----------------------------------------
+  public void close() throws IOException
+  {
+    if (out != null)
+      out.close();
+  }
+  //-----------------------------------------
+  private static String formatToken(int kind, int bL, 
+                     int bC, int eL, int eC, String image)
+  {
+    return String.format(
+        "; kd=%3d bL=%3d bC=%3d eL=%3d eC=%3d im=%s",
+        kind, bL, bC, eL, eC, image);
+  }
+  //-----------------------------------------
+  private static String formatRule(String name, int bL, 
+                                                   int bC)
+  {
+    return String.format("; rule bL=%3d bC=%3d %s",
+                                           bL, bC, name);
+  }
+  //-----------------------------------------
+  // Print a binary trace file as the text trace.
+  //
+  public static void main(String[] args) throws 
+                                             IOException
+  {
+    if (args.length != 1)
+    {
+      System.err.println("Wrong number cmd line args");  
+      System.exit(1);
+    }
+
+    DataInputStream in = new DataInputStream(
+                      new BufferedInputStream(
+                          new FileInputStream(args[0])));
+    int type;
+    while ((type = in.read()) >= 0)
+      if (type == TOKEN)
+      {
+        int kind = in.readInt();
+        int bL = in.readInt();
+        int bC = in.readInt();
+        int eL = in.readInt();
+        int eC = in.readInt();
+        System.out.println(
+               formatToken(kind, bL, bC, eL, eC, in.readUTF()));
+      }
+      else if (type == RULE)
+      {
+        String name = in.readUTF();
+        int bL = in.readInt();
+        System.out.println(formatRule(name, bL, in.readInt()));
+      }
+      else
+      {
+        System.err.println("Bad trace file " + args[0]);
+        System.exit(1);
+      }
+    in.close();
+  }
+}                                     // end of S2Trace
+//======================================================
+// Micro-benchmarks of the compiler's hot paths, run as
+//   java S2Bench <benchmark>
+// where benchmark is one of
+//   symbols  ns per S2SymTab lookup, 10 to 1,000,000
+//            symbols
+//   tokens   bytes allocated per token by S2TokenMgr
+//   output   lines/s written by S2Output and by printf
+//   parallel s to compile 1,000,000 statements with and
+//            without -parallel
+// Each figure is the best of RUNS runs, so JIT warm-up 
+// and GC pauses drop out.
+//
+class S2Bench
+{
+  private static final int RUNS = 5;
+  private static long sink;    // keeps results live
+  //-----------------------------------------
+  public static void main(String[] args) throws 
+                                             IOException
+  {
+    if (args.length != 1)
+    {
+      System.err.println("Wrong number cmd line args");  
+      System.exit(1);
+    }
+
+    if (args[0].equals("symbols"))
+      symbols();
+    else if (args[0].equals("tokens"))
+    {
+      tokens("punctuation", "((( ; ))) + - * / = { }");
+      tokens("expressions", "print(17 + 3 * (42 - 5) / 9);");
+    }
+    else if (args[0].equals("output"))
+      output();
+    else if (args[0].equals("parallel"))
+      parallel();
+    else
+    {
+      System.err.println("Unknown benchmark " + args[0]);
+      System.exit(1);
+    }
+  }
+  //-----------------------------------------
+  // Time enter() of names already in the table, for 
+  // tables of 10 to 1,000,000 symbols.  With a hash index
+  // the time per lookup stays flat apart from cache 
+  // effects; with a linear scan it grows with the size.
+  //
+  private static void symbols()
+  {
+    int lookups = 2000000;
+    for (int n = 10; n <= 1000000; n *= 10)
+    {
+      String[] names = new String[n];
+      for (int i = 0; i < n; i++)
+        names[i] = "v" + i;
+
+      long best = Long.MAX_VALUE;
+      for (int run = 0; run < RUNS; run++)
+      {
+        S2SymTab st = new S2SymTab();
+        for (String name : names)
+          st.enter(name);
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++)
+          sink += st.enter(names[i % n]);
+        best = Math.min(best, System.nanoTime() - start);
+      }
+      System.out.printf("%9d symbols: %6.1f ns/lookup%n", 
+                                  n, (double)best / lookups);
+    }
+  }
   //-----------------------------------------
-  public S2SymTab()
+  // Bytes the thread allocates per token while S2TokenMgr
+  // reads 500,000 tokens of source made of copies of line.
+  // There is no source echo, so this is the token path 
+  // alone.
+  //
+  private static void tokens(String name, String line) 
+                                        throws IOException
   {
-    symbol = new ArrayList<String>();
+    File file = File.createTempFile("S2Bench", ".s");
+    file.deleteOnExit();
+    writeLines(file, line, 1);
+    long perLine = countTokens(tokenMgr(file));
+    writeLines(file, line, (int)(500000 / perLine));
+
+    com.sun.management.ThreadMXBean bean = 
+             (com.sun.management.ThreadMXBean)
+        java.lang.management.ManagementFactory.getThreadMXBean();
+    long best = Long.MAX_VALUE;
+    long count = 0;
+    for (int run = 0; run < RUNS; run++)
+    {
+      S2TokenMgr tm = tokenMgr(file);
+      long start = bean.getCurrentThreadAllocatedBytes();
+      count = countTokens(tm);
+      best = Math.min(best, 
+                  bean.getCurrentThreadAllocatedBytes() - start);
+    }
+    System.out.printf("%-12s %7d tokens: %5.1f bytes/token%n", 
+                          name, count, (double)best / count);
   }
   //-----------------------------------------
-  public void enter(String s)
+  private static void writeLines(File file, String line, 
+                            int count) throws IOException
   {
-    int index = symbol.indexOf(s);
-
-    // if s is not in symbol, then add it 
-    if (index < 0) 
-      symbol.add(s);
+    try (PrintWriter out = new PrintWriter(file))
+    {
+      for (int i = 0; i < count; i++)
+        out.println(line);
+    }
   }
   //-----------------------------------------
-  public String getSymbol(int index)
+  private static S2TokenMgr tokenMgr(File file) 
+                                        throws IOException
   {
-    return symbol.get(index);
+    return new S2TokenMgr(new S2SourceReader(file), 
+                 new S2SymTab(), 
+                 new S2CodeGen(null, null), 
+                 new S2Trace(S2Trace.OFF, null, null), 
+                                           S2Output.NONE);
   }
   //-----------------------------------------
-  public int getSize()
+  // Read tokens into one slot, as the parser's ring 
+  // does, up to EOF.  Return how many were read.
+  //
+  private static long countTokens(S2TokenMgr tm)
   {
-    return symbol.size();
+    Token token = new Token();
+    long count = 0;
+    for (tm.getNextToken(token); token.kind != S2Constants.EOF;
+                                    tm.getNextToken(token))
+      count++;
+    return count;
   }
-}                                     // end of S2SymTab
+  //-----------------------------------------
+  // Lines/s for 2,000,000 lines, three instructions to 
+  // each dw, written by S2Output and by the printf 
+  // formats it replaced.  The two files must match.
+  //
+  private static void output() throws IOException
+  {
+    int lines = 2000000;
+    File fast = File.createTempFile("S2Bench", ".a");
+    File printf = File.createTempFile("S2Bench", ".a");
+    fast.deleteOnExit();
+    printf.deleteOnExit();
+
+    long bestFast = Long.MAX_VALUE;
+    long bestPrintf = Long.MAX_VALUE;
+    for (int run = 0; run < RUNS; run++)
+    {
+      long start = System.nanoTime();
+      S2Output out = new S2Output(fast.getPath(), null);
+      for (int i = 0; i < lines / 4; i++)
+      {
+        out.instruction("pc", "x" + (i & 255));
+        out.instruction("pwc", "" + i);
+        out.instruction("stav", null);
+        out.dw("x" + (i & 255), "" + i);
+      }
+      out.close();
+      bestFast = Math.min(bestFast, System.nanoTime() - start);
+
+      start = System.nanoTime();
+      PrintWriter pw = new PrintWriter(new BufferedWriter(
+                                   new FileWriter(printf)));
+      for (int i = 0; i < lines / 4; i++)
+      {
+        pw.printf("          %-4s      %s%n", "pc", 
+                                            "x" + (i & 255));
+        pw.printf("          %-4s      %s%n", "pwc", "" + i);
+        pw.printf("          %-4s%n", "stav");
+        pw.printf("%-9s dw        %s%n", "x" + (i & 255) + ":",
+                                                       "" + i);
+      }
+      pw.close();
+      bestPrintf = Math.min(bestPrintf, 
+                                  System.nanoTime() - start);
+    }
+
+    if (Files.mismatch(fast.toPath(), printf.toPath()) >= 0)
+    {
+      System.err.println("S2Output and printf differ");
+      System.exit(1);
+    }
+    System.out.printf("S2Output %6.2fM lines/s%n", 
+                                 lines * 1e3 / bestFast);
+    System.out.printf("printf   %6.2fM lines/s%n", 
+                               lines * 1e3 / bestPrintf);
+  }
+  //-----------------------------------------
+  // Seconds to compile 1,000,000 top-level statements, 
+  // with and without -parallel, on the cores the JVM 
+  // sees (with one, -parallel compiles sequentially).  
+  // The two .a files must match.
+  //
+  private static void parallel() throws IOException
+  {
+    File dir = Files.createTempDirectory("S2Bench").toFile();
+    dir.deleteOnExit();
+    String[] names = {"sequential", "parallel"};
+    for (String name : names)
+    {
+      File source = new File(dir, name + ".s");
+      source.deleteOnExit();
+      new File(dir, name + ".a").deleteOnExit();
+      try (PrintWriter out = new PrintWriter(
+              new BufferedWriter(new FileWriter(source))))
+      {
+        for (int i = 0; i < 1000000; i++)
+          out.println("print(" + i % 1000 + " + " + 
+                        i % 100 + " * (" + i * 13 % 1000 + 
+                                          " - 5) / 9);");
+      }
+    }
+
+    long[] best = {Long.MAX_VALUE, Long.MAX_VALUE};
+    for (int run = 0; run < RUNS; run++)
+      for (int p = 0; p < 2; p++)
+      {
+        S2Options options = new S2Options();
+        options.dir = dir;
+        options.traceLevel = S2Trace.OFF;
+        options.listing = S2Output.NONE;
+        options.parallel = p == 1;
+        long start = System.nanoTime();
+        String error = S2.compile(names[p], options);
+        best[p] = Math.min(best[p], System.nanoTime() - start);
+        if (error != null)
+        {
+          System.err.println(error);
+          System.exit(1);
+        }
+      }
+
+    if (Files.mismatch(new File(dir, "sequential.a").toPath(),
+                 new File(dir, "parallel.a").toPath()) >= 0)
+    {
+      System.err.println("-parallel output differs");
+      System.exit(1);
+    }
+    System.out.printf("%d cores%n", 
+                  Runtime.getRuntime().availableProcessors());
+    System.out.printf("sequential %6.2f s%n", best[0] / 1e9);
+    System.out.printf("parallel   %6.2f s (%.2fx)%n", 
+                     best[1] / 1e9, (double)best[0] / best[1]);
+  }
+}                                      // end of S2Bench
 //======================================================
 class S2TokenMgr implements S2Constants
 {
-  private Scanner inFile;          
-  private PrintWriter outFile;
-  private boolean debug;
+  private S2SourceReader inFile;          
+  private S2SymTab st;        // interns identifiers
+  private S2CodeGen cg;
+  private S2Trace trace;
+  private int listing;         // source echo, see S2Output
   private char currentChar;
   private int currentColumnNumber;
   private int currentLineNumber;
-  private String inputLine;    // holds 1 line of input
-  private Token token;         // holds 1 token
   private StringBuffer buffer; // token image built here
+
+  // images of single-char tokens, so none are built
+  private static final String[] ONE_CHAR = new String[128];
+  static
+  {
+    for (char c = 0; c < 128; c++)
+      ONE_CHAR[c] = Character.toString(c);
+  }
+
+  // Keywords are recognized while an identifier is 
+  // scanned by walking a trie built from KEYWORDS, so 
+  // the cost does not grow with the number of keywords.
+  // TRIE[state * 128 + c] is the state after ASCII char c
+  // (-1 if no keyword has that prefix), and 
+  // KEYWORD_AT[state] is the keyword ending there or -1.
+  private static final String[] KEYWORDS = 
+                                   {"print"};
+  private static final int[] KEYWORD_KINDS = 
+                                   {PRINT};
+  private static final int[] TRIE;
+  private static final int[] KEYWORD_AT;
+  static
+  {
+    int states = 1;
+    for (String k : KEYWORDS)
+      states += k.length();
+    TRIE = new int[states * 128];
+    Arrays.fill(TRIE, -1);
+    KEYWORD_AT = new int[states];
+    Arrays.fill(KEYWORD_AT, -1);
+
+    int used = 1;
+    for (int k = 0; k < KEYWORDS.length; k++)
+    {
+      int state = 0;
+      for (int i = 0; i < KEYWORDS[k].length(); i++)
+      {
+        int next = state * 128 + KEYWORDS[k].charAt(i);
+        if (TRIE[next] < 0)
+          TRIE[next] = used++;
+        state = TRIE[next];
+      }
+      KEYWORD_AT[state] = k;
+    }
+  }
   //-----------------------------------------
-  public S2TokenMgr(Scanner inFile, 
-                    PrintWriter outFile, boolean debug)
+  public S2TokenMgr(S2SourceReader inFile, S2SymTab st,
+                    S2CodeGen cg, S2Trace trace, 
+                    int listing)
   {
     this.inFile = inFile;
-    this.outFile = outFile;
-    this.debug = debug;
+    this.st = st;
+    this.cg = cg;
+    this.trace = trace;
+    this.listing = listing;
     currentChar = '\n';        //  '\n' triggers read
     currentLineNumber = 0;
     buffer = new StringBuffer();
   }
   //-----------------------------------------
-  public Token getNextToken()
+  // The reader starts part way into the source, at line.
+  //
+  public void startAt(int line)
+  {
+    currentLineNumber = line - 1;
+  }
+  //-----------------------------------------
+  // Read the next token into token, a slot reused by
+  // the parser.
+  //
+  public void getNextToken(Token token)
   {
     // skip whitespace
     while (Character.isWhitespace(currentChar))
       getNextChar();
 
-    // construct token to be returned to parser
-    token = new Token();   
+    // clear token to be returned to parser
+    token.kind = 0;
+    token.image = null;
     token.next = null;
+    token.endLine = 0;
+    token.endColumn = 0;
 
     // save start-of-token position
     token.beginLine = currentLineNumber;
@@ -175,37 +1915,45 @@ class S2TokenMgr implements S2Constants
     else  // check for unsigned int
     if (Character.isDigit(currentChar)) 
     {
-      buffer.setLength(0);  // clear buffer
-      do  // build token image in buffer
+      do  // scan number
       {
-        buffer.append(currentChar); 
         token.endLine = currentLineNumber;
         token.endColumn = currentColumnNumber;
         getNextChar();
       } while (Character.isDigit(currentChar));
-      // save buffer as String in token.image
-      token.image = buffer.toString();
+      // interned like an identifier, so a number seen 
+      // before needs no new String
+      token.image = st.intern(inFile.getChars(), 
+          inFile.offset(token.beginColumn - 1), 
+          token.endColumn - token.beginColumn + 1);
       token.kind = UNSIGNED;
     }
 
     else  // check for identifier
     if (Character.isLetter(currentChar)) 
     { 
-      buffer.setLength(0);  // clear buffer
-      do  // build token image in buffer
+      int state = 0;             // trie state
+      do  // scan identifier
       {
-        buffer.append(currentChar);
+        if (state >= 0)
+          state = currentChar < 128 ? 
+                  TRIE[state * 128 + currentChar] : -1;
         token.endLine = currentLineNumber;
         token.endColumn = currentColumnNumber;
         getNextChar();
       } while (Character.isLetterOrDigit(currentChar));
-      // save buffer as String in token.image
-      token.image = buffer.toString();
 
       // check if keyword
-      if (token.image.equals("print"))
-        token.kind = PRINT;
-     
+      int keyword = state >= 0 ? KEYWORD_AT[state] : -1;
+      if (keyword >= 0)
+      {
+        token.image = KEYWORDS[keyword];
+        token.kind = KEYWORD_KINDS[keyword];
+      }
+      else
+        token.image = st.intern(inFile.getChars(), 
+            inFile.offset(token.beginColumn - 1), 
+            token.endColumn - token.beginColumn + 1);
     }
 
     else  // process single-character token
@@ -248,7 +1996,9 @@ class S2TokenMgr implements S2Constants
       }
 
       // save currentChar as String in token.image
-      token.image = Character.toString(currentChar);
+      token.image = currentChar < 128 ? 
+            ONE_CHAR[currentChar] : 
+            Character.toString(currentChar);
 
       // save end-of-token position
       token.endLine = currentLineNumber;
@@ -257,14 +2007,7 @@ class S2TokenMgr implements S2Constants
       getNextChar();  // read beyond end of token
     }
 
-    // token trace appears as comments in output file
-    if (debug)
-      outFile.printf(
-        "; kd=%3d bL=%3d bC=%3d eL=%3d eC=%3d im=%s%n",
-        token.kind, token.beginLine, token.beginColumn, 
-        token.endLine, token.endColumn, token.image);
-
-    return token;     // return token to parser
+    trace.token(token);
   }     
   //-----------------------------------------
   private void getNextChar()
@@ -274,14 +2017,17 @@ class S2TokenMgr implements S2Constants
 
     if (currentChar == '\n')        // need next line?
     {
-      if (inFile.hasNextLine())     // any lines left?
+      if (inFile.nextLine())        // any lines left?
       {
-        inputLine = inFile.nextLine();  // get next line
-        // output source line as comment
-        outFile.println("; " + inputLine);
-        inputLine = inputLine + "\n";   // mark line end
         currentColumnNumber = 0;
         currentLineNumber++;   
+
+        // output source line as comment, or just mark
+        // where its code starts for the line map
+        if (listing == S2Output.FULL)
+          cg.emitComment(inFile.getLine("; "));
+        else if (listing == S2Output.MAP)
+          cg.emitLineMark(currentLineNumber);
       }                                
       else  // at end of file
       {
@@ -290,12 +2036,12 @@ class S2TokenMgr implements S2Constants
       }
     }
 
-    // get next char from inputLine
-    currentChar = inputLine.charAt(currentColumnNumber++);
+    // get next char from current line
+    currentChar = inFile.charAt(currentColumnNumber++);
 
     // in S2, test for single-line comment goes here
 	
-	if(currentChar == '/' && inputLine.charAt(currentColumnNumber) == '/'){
+	if(currentChar == '/' && inFile.charAt(currentColumnNumber) == '/'){
 		currentChar = '\n';
 	}
 		
@@ -307,17 +2053,46 @@ class S2Parser implements S2Constants
   private S2SymTab st;
   private S2TokenMgr tm;
   private S2CodeGen cg;
+  private S2Trace trace;
   private Token currentToken;
   private Token previousToken; 
+
+  // Tokens are read into a ring of reusable slots: 
+  // token number pos (currentToken) is in 
+  // ring[pos & RING_MASK], and tokens up to number 
+  // read - 1 have been read.  A token is reused when
+  // RING_SIZE - 1 more have been read, so the parser
+  // may hold on to one while it consumes a few more.
+  private static final int RING_SIZE = 8;
+  private static final int RING_MASK = RING_SIZE - 1;
+  private Token[] ring;
+  private int pos;
+  private int read;
+
+  // expression parsing, see expr
+  private int[] ops = new int[16];  // operator stack
+  private int opTop;                // number on ops
+  private int parens;               // "(" on ops
+
+  private int depth;          // of { } being parsed
+  private boolean stopped;    // see topLevelStatement
   //-----------------------------------------
   public S2Parser(S2SymTab st, S2TokenMgr tm, 
-                                           S2CodeGen cg)
+                  S2CodeGen cg, S2Trace trace)
   {
+    this.trace = trace;
     this.st = st;
     this.tm = tm;
     this.cg = cg;   
+    ring = new Token[RING_SIZE];
+    for (int i = 0; i < RING_SIZE; i++)
+      ring[i] = new Token();
+
     // prime currentToken with first token
-    currentToken = tm.getNextToken(); 
+    tm.getNextToken(ring[0]);
+    currentToken = ring[0];
+    pos = 0;
+    read = 1;
     previousToken = null;
   }
   //-----------------------------------------
@@ -340,41 +2115,33 @@ class S2Parser implements S2Constants
   private void advance()
   {
     previousToken = currentToken; 
+    pos++;
 
-    // If next token is on token list, advance to it.
-    if (currentToken.next != null)
-      currentToken = currentToken.next;
-
-    // Otherwise, get next token from token mgr and 
-    // put it on the list.
-    else
-      currentToken = 
-                  currentToken.next = tm.getNextToken();
+    // If next token has not been read yet, get it from
+    // token mgr into the next slot.
+    if (pos == read)
+      tm.getNextToken(ring[read++ & RING_MASK]);
+    currentToken = ring[pos & RING_MASK];
   }
   //-----------------------------------------
   // getToken(i) returns ith token without advancing
   // in token stream.  getToken(0) returns 
   // previousToken.  getToken(1) returns currentToken.
-  // getToken(2) returns next token, and so on.
+  // getToken(2) returns next token, and so on, up to
+  // getToken(RING_SIZE - 2).
   //
   private Token getToken(int i)
   {
     if (i <= 0)
       return previousToken;
+    if (i > RING_SIZE - 2)
+      throw new RuntimeException(
+                    "Lookahead of " + i + " tokens too far");
 
-    Token t = currentToken;
-    for (int j = 1; j < i; j++)  // loop to ith token
-    {
-      // if next token is on token list, move t to it
-      if (t.next != null)
-        t = t.next;
-
-      // Otherwise, get next token from token mgr and 
-      // put it on the list.
-      else
-        t = t.next = tm.getNextToken();
-    }
-    return t;
+    // read tokens up to the ith one
+    while (read - pos < i)
+      tm.getNextToken(ring[read++ & RING_MASK]);
+    return ring[(pos + i - 1) & RING_MASK];
   }
   //-----------------------------------------
   // If the kind of the current token matches the
@@ -396,36 +2163,51 @@ class S2Parser implements S2Constants
   //-----------------------------------------
   private void program()
   {
+    trace.rule("program", currentToken);
     statementList();
     cg.endCode();
-    if (currentToken.kind != EOF)  //garbage at end?
+    if (!stopped && currentToken.kind != EOF)  //garbage at end?
       throw genEx("Expecting <EOF>");
   }
   //-----------------------------------------
   private void statementList()
   {
-    switch(currentToken.kind)
+    // one statement per pass, so the stack does not grow
+    // with the number of statements
+    while (true)
     {
-      case ID:
-      case PRINTLN:
-      case PRINT:
-      case SEMICOLON:
-      case LEFTCURLYBRACKET:
-        statement();
-        statementList();
-        break;
-
-      case EOF:
-      case RIGHTCURLYBRACKET:
-        ;
-        break;
-      default:
-        throw genEx("Expecting statement or <EOF>");
+      // where a top-level statement begins a line, a part
+      // of a parallel compile may end
+      if (depth == 0 && currentToken.kind != EOF && 
+          read == pos + 1 && (previousToken == null || 
+            previousToken.endLine < currentToken.beginLine) &&
+          cg.topLevelStatement(currentToken.beginLine))
+      {
+        stopped = true;
+        return;
+      }
+      trace.rule("statementList", currentToken);
+      switch(currentToken.kind)
+      {
+        case ID:
+        case PRINTLN:
+        case PRINT:
+        case SEMICOLON:
+        case LEFTCURLYBRACKET:
+          statement();
+          break;
+        case EOF:
+        case RIGHTCURLYBRACKET:
+          return;
+        default:
+          throw genEx("Expecting statement or <EOF>");
+      }
     }
   }
   //-----------------------------------------
   private void statement()
   {
+    trace.rule("statement", currentToken);
     switch(currentToken.kind)
     {
       case ID: 
@@ -446,10 +2228,12 @@ class S2Parser implements S2Constants
       default:         
         throw genEx("Expecting statement");
     }
+    cg.endStatement();
   }
   //-----------------------------------------
   private void assignmentStatement()
   {
+    trace.rule("assignmentStatement", currentToken);
     Token t;
 
     t = currentToken;
@@ -464,6 +2248,7 @@ class S2Parser implements S2Constants
   //-----------------------------------------
   private void printlnStatement()
   {
+    trace.rule("printlnStatement", currentToken);
     consume(PRINTLN);
     consume(LEFTPAREN);
     expr();
@@ -476,6 +2261,7 @@ class S2Parser implements S2Constants
     //-----------------------------------------
   private void printStatement()
   {
+    trace.rule("printStatement", currentToken);
     consume(PRINT);
     consume(LEFTPAREN);
     expr();
@@ -486,155 +2272,565 @@ class S2Parser implements S2Constants
    //-----------------------------------------
   private void nullStatement()
   {
+    trace.rule("nullStatement", currentToken);
     consume(SEMICOLON);
   }
    //-----------------------------------------
   private void compoundStatement()
   {
+    trace.rule("compoundStatement", currentToken);
     consume(LEFTCURLYBRACKET);
+    depth++;
 	  statementList();
+    depth--;
     consume(RIGHTCURLYBRACKET);
   }
   //-----------------------------------------
+  // Expressions are parsed by precedence climbing, with
+  // pending operators and "(" kept on an explicit stack
+  // instead of the Java stack, so neither long operator
+  // chains nor deep nesting can overflow it.  Code is 
+  // generated in the same order as recursive descent on
+  //   expr   -> term (("+" | "-") term)*
+  //   term   -> factor (("*" | "/") factor)*
+  //   factor -> UNSIGNED | "+" UNSIGNED | "-" UNSIGNED
+  //           | ID | "(" expr ")"
+  //
   private void expr()
   {
-    term();
-    termList();
+    trace.rule("expr", currentToken);
+    opTop = 0;
+    parens = 0;
+    while (true)
+    {
+      factor();      // up to and including next operand
+
+      // operators, and ")"s, after the operand
+      while (true)
+      {
+        int kind = currentToken.kind;
+        if (kind == PLUS || kind == MINUS || 
+            kind == TIMES || kind == DIV)
+        {
+          reduce(precedence(kind));
+          push(kind);
+          consume(kind);
+          break;                 // on to next operand
+        }
+        else if (kind == RIGHTPAREN && parens > 0)
+        {
+          reduce(0);             // back to the "("
+          opTop--;
+          parens--;
+          consume(RIGHTPAREN);
+        }
+        else if (kind == RIGHTPAREN || kind == SEMICOLON)
+        {
+          if (parens > 0)
+            throw genEx("Expecting " + tokenImage[RIGHTPAREN]);
+          reduce(0);
+          return;
+        }
+        else
+          throw genEx("Expecting op, \")\", \"/\", or \";\"");
+      }
+    }
   }
   //-----------------------------------------
-  private void termList()
+  // Generate code for the operators on top of ops whose
+  // precedence is at least min, stopping at a "(".
+  //
+  private void reduce(int min)
   {
-    switch(currentToken.kind)
-    {
-      case PLUS:
-        consume(PLUS);
-        term();
-        cg.emitInstruction("add");
-        termList();
-        break;
-    case MINUS:
-        consume(MINUS);
-        term();
-        cg.emitInstruction("sub");
-        termList();
-        break;
-        case RIGHTPAREN:
-        case SEMICOLON:
-        ;
-        break;
-      default:
-        throw genEx("Expecting \"+\", \"-\", \")\", or \";\"");
-    }
+    while (opTop > 0 && ops[opTop - 1] != LEFTPAREN &&
+                           precedence(ops[opTop - 1]) >= min)
+      switch(ops[--opTop])
+      {
+        case PLUS:
+          cg.emitInstruction("add");
+          break;
+        case MINUS:
+          cg.emitInstruction("sub");
+          break;
+        case TIMES:
+          cg.emitInstruction("mult");
+          break;
+        case DIV:
+          cg.emitInstruction("div");
+          break;
+      }
   }
   //-----------------------------------------
-  private void term()
+  private int precedence(int kind)
   {
-    factor();
-    factorList();
+    return kind == TIMES || kind == DIV ? 2 : 1;
   }
   //-----------------------------------------
-  private void factorList()
+  private void push(int kind)
   {
-    switch(currentToken.kind)
-    {
-      case TIMES:
-        consume(TIMES);
-        factor();
-        cg.emitInstruction("mult");
-        factorList();
-        break;
-    case DIV:
-        consume(DIV);
-        factor();
-        cg.emitInstruction("div");
-        factorList();
-        break;
-      case PLUS:
-      case MINUS:
-      case RIGHTPAREN:
-      case SEMICOLON:
-        ;
-        break;
-      default:
-        throw genEx("Expecting op, \")\", \"/\", or \";\"");
-    }
+    if (opTop == ops.length)
+      ops = Arrays.copyOf(ops, 2 * opTop);
+    ops[opTop++] = kind;
   }
   //-----------------------------------------
+  // Parse a factor up to its first operand, stacking any
+  // "(" before it.
+  //
   private void factor()
   {  
     Token t;
 
-    switch(currentToken.kind)
+    while (true)
     {
-      case UNSIGNED:
-        t = currentToken;
-        consume(UNSIGNED);
-        cg.emitInstruction("pwc", t.image);
-        break;
-      case PLUS:
-        consume(PLUS);
-        t = currentToken;
-        consume(UNSIGNED);
-        cg.emitInstruction("pwc", t.image); 
-        break;
-      case MINUS:
-        consume(MINUS);
-        t = currentToken;
-        consume(UNSIGNED);
-        cg.emitInstruction("pwc", "-" + t.image);
-        break;
-      case ID:
-        t = currentToken;
-        consume(ID);
-        st.enter(t.image);
-        cg.emitInstruction("p", t.image);
-        break;
-      case LEFTPAREN:
-        consume(LEFTPAREN);
-        expr();
-        consume(RIGHTPAREN);
-        break;
-      default:
-        throw genEx("Expecting factor");
+      trace.rule("factor", currentToken);
+      switch(currentToken.kind)
+      {
+        case UNSIGNED:
+          t = currentToken;
+          consume(UNSIGNED);
+          cg.emitInstruction("pwc", t.image);
+          return;
+        case PLUS:
+          consume(PLUS);
+          t = currentToken;
+          consume(UNSIGNED);
+          cg.emitInstruction("pwc", t.image); 
+          return;
+        case MINUS:
+          consume(MINUS);
+          t = currentToken;
+          consume(UNSIGNED);
+          cg.emitInstruction("pwc", "-" + t.image);
+          return;
+        case ID:
+          t = currentToken;
+          consume(ID);
+          st.enter(t.image);
+          cg.emitInstruction("p", t.image);
+          return;
+        case LEFTPAREN:
+          consume(LEFTPAREN);
+          push(LEFTPAREN);
+          parens++;
+          break;
+        default:
+          throw genEx("Expecting factor");
+      }
     }
   }
 }                                     // end of S2Parser
 //======================================================
 class S2CodeGen
 {
-  private PrintWriter outFile;
+  private static final String LINE_MARK = "\0";
+  private S2Output outFile;
   private S2SymTab st;
+  private ArrayList<Integer> constants; // pwc not yet out
+  private ArrayList<S2Statement> program;
+  private ArrayList<String> comments;      // since last
+  private ArrayList<S2Instruction> code;   // 1 statement
+
+  // -parallel: a part of the program, up to the top-level
+  // statement that begins stopLine (0 for the rest)
+  private boolean part;
+  private int stopLine;
+  private boolean stopped;    // there
+  private boolean restarted;  // comments so far are reused
+  private boolean ended;      // program written
   //-----------------------------------------
-  public S2CodeGen(PrintWriter outFile, S2SymTab st)
+  public S2CodeGen(S2Output outFile, S2SymTab st)
   {
     this.outFile = outFile;
     this.st = st;
+    constants = new ArrayList<Integer>();
+    program = new ArrayList<S2Statement>();
+    comments = new ArrayList<String>();
+    code = new ArrayList<S2Instruction>();
   }
   //-----------------------------------------
+  // Instructions pass through a folding stage and are 
+  // then collected, a statement at a time, into the 
+  // program, which endCode writes.  A pwc is held back so
+  // that an operator applied to constants can be done at
+  // compile time.
+  //
   public void emitInstruction(String op)
   {
-    outFile.printf("          %-4s%n", op); 
+    if (fold(op))
+      return;
+    flush();
+    code.add(new S2Instruction(op, null)); 
   }
   //-----------------------------------------
   public void emitInstruction(String op, String opnd)
   {           
-    outFile.printf("          %-4s      %s%n", op,opnd); 
+    if (op.equals("pwc") && defer(opnd))
+      return;
+    flush();
+    code.add(new S2Instruction(op, opnd)); 
+  }
+  //-----------------------------------------
+  // Source lines and token traces are written ahead of
+  // the code of the statement that follows them.
+  //
+  public void emitComment(String line)
+  {
+    comments.add(line);
+  }
+  //-----------------------------------------
+  // In map listing mode, a source line is marked in 
+  // place of its echo, so the map can give the line its
+  // code starts on.
+  //
+  public void emitLineMark(int lineNumber)
+  {
+    comments.add(LINE_MARK + lineNumber);
+  }
+  //-----------------------------------------
+  private static void writeComment(S2Output out, 
+                                          String line)
+  {
+    if (line.startsWith(LINE_MARK))
+      out.mark(Integer.parseInt(line.substring(1)));
+    else
+      out.println(line);
+  }
+  //-----------------------------------------
+  public void endStatement()
+  {
+    flush();
+    if (code.isEmpty() && comments.isEmpty())
+      return;              // e.g., end of { } or ;
+
+    program.add(new S2Statement(comments, code));
+    comments = new ArrayList<String>();
+    code = new ArrayList<S2Instruction>();
+  }
+  //-----------------------------------------
+  // Generate only the part of the program up to the 
+  // top-level statement that begins stopLine (0 for the
+  // rest), which starts after another part if restarted.
+  //
+  public void setPart(int stopLine, boolean restarted)
+  {
+    part = true;
+    this.stopLine = stopLine;
+    this.restarted = restarted;
+  }
+  //-----------------------------------------
+  // Whether the part ended where it was meant to.
+  //
+  public boolean isComplete()
+  {
+    return stopLine == 0 || stopped;
+  }
+  //-----------------------------------------
+  // Add the statements of the next part, and its symbols
+  // in the order it entered them.
+  //
+  public void join(S2CodeGen part)
+  {
+    program.addAll(part.program);
+    for (int i = 0; i < part.st.getSize(); i++)
+      st.enter(part.st.getSymbol(i));
+  }
+  //-----------------------------------------
+  // The parser is at a top-level statement that begins 
+  // line.  Returns true if the parser should stop, as a
+  // part does at or past its stopLine.
+  //
+  public boolean topLevelStatement(int line)
+  {
+    if (restarted)      // the part before has these
+    {
+      comments.clear();
+      restarted = false;
+    }
+    if (stopLine > 0 && line >= stopLine)
+    {
+      stopped = line == stopLine;
+      return true;
+    }
+    return false;
+  }
+  //-----------------------------------------
+  // Hold back a pwc of a constant that fits in an int.
+  //
+  private boolean defer(String opnd)
+  {
+    int value;
+    try
+    {
+      value = Integer.parseInt(opnd);
+    }
+    catch (NumberFormatException e)
+    {
+      return false;
+    }
+    constants.add(value);
+    return true;
+  }
+  //-----------------------------------------
+  // Apply op at compile time to the held-back constants, 
+  // if it can be.  The constants are 16-bit words and 
+  // arithmetic wraps to 16 bits as it does on the target.
+  // Division by zero is left to run time.
+  //
+  private boolean fold(String op)
+  {
+    int n = constants.size();
+    if (n < 2)
+      return false;
+
+    int x = (short)(int)constants.get(n - 2);
+    int y = (short)(int)constants.get(n - 1);
+    int result;
+    if (op.equals("add"))
+      result = x + y;
+    else if (op.equals("sub"))
+      result = x - y;
+    else if (op.equals("mult"))
+      result = x * y;
+    else if (op.equals("div") && y != 0)
+      result = x / y;
+    else
+      return false;
+
+    constants.remove(n - 1);
+    constants.set(n - 2, (int)(short)result);
+    return true;
+  }
+  //-----------------------------------------
+  // Pass on whatever the folding stage is holding.
+  //
+  private void flush()
+  {
+    for (int value : constants)
+      code.add(new S2Instruction("pwc", "" + value));
+    constants.clear();
+  }
+  //-----------------------------------------
+  private static void write(S2Output out, 
+                                      S2Instruction inst)
+  {
+    out.instruction(inst.op, inst.opnd);
+  }
+  //-----------------------------------------
+  // Where to cut size statements into up to slices 
+  // slices, at least one: slice k is from[k] up to 
+  // from[k + 1].
+  //
+  static int[] cut(int size, int slices)
+  {
+    int n = Math.max(1, Math.min(slices, size));
+    int[] from = new int[n + 1];
+    for (int k = 1; k <= n; k++)
+      from[k] = (int)((long)k * size / n);
+    return from;
+  }
+  //-----------------------------------------
+  // Write program[from] up to program[to] to out, and 
+  // add the names it pushes to used (unless it is null).
+  //
+  private void writeStatements(S2Output out, int from, 
+                              int to, HashSet<String> used)
+  {
+    for (S2Statement s : program.subList(from, to))
+    {
+      for (String line : s.comments)
+        writeComment(out, line);
+      for (S2Instruction inst : s.code)
+      {
+        write(out, inst);
+        if (used != null && (inst.is("p") || inst.is("pc")))
+          used.add(inst.opnd);
+      }
+    }
   }
   //-----------------------------------------
   private void emitdw(String label, String value)
   {           
-    outFile.printf(
-             "%-9s dw        %s%n", label + ":", value);
+    outFile.dw(label, value);
   }
   //-----------------------------------------
   public void endCode()
   {
+    endCode(1);
+  }
+  //-----------------------------------------
+  // endCode for a program cut into up to slices slices, 
+  // whose code is formatted, and used names found, at 
+  // once on the fork-join pool, while the slices done so
+  // far are written in order.  Dead store removal carries
+  // the live variables from one statement to the one 
+  // before it, so it still runs over the whole program.
+  //
+  public void endCode(int slices)
+  {
+    endStatement();
+    if (part)              // S2Parallel joins the parts
+      return;
+    ended = true;
+    removeDeadStores();
+
+    // only variables the remaining code uses get a dw
+    HashSet<String> used = new HashSet<String>();
+
+    // slice k is program[from[k]] up to program[from[k+1]]
+    int[] from = cut(program.size(), slices);
+    int n = from.length - 1;
+    if (n == 1)
+      writeStatements(outFile, 0, program.size(), used);
+    else
+    {
+      ArrayList<HashSet<String>> uses = 
+                             new ArrayList<HashSet<String>>();
+      ArrayList<ForkJoinTask<S2Output>> formats = 
+                      new ArrayList<ForkJoinTask<S2Output>>();
+      for (int k = 0; k < n; k++)
+      {
+        int slice = k;
+        uses.add(new HashSet<String>());
+        formats.add(ForkJoinTask.adapt(() -> 
+        {
+          S2Output out = outFile.slice();
+          writeStatements(out, from[slice], 
+                          from[slice + 1], uses.get(slice));
+          return out;
+        }));
+      }
+      for (ForkJoinTask<S2Output> format : formats)
+        format.fork();
+      for (int k = 0; k < n; k++)
+      {
+        outFile.append(formats.get(k).join());
+        used.addAll(uses.get(k));
+      }
+    }
+
     outFile.println();
-    emitInstruction("halt");
+    write(outFile, new S2Instruction("halt", null));
 
     int size = st.getSize();
     // emit dw for each symbol in the symbol table
     for (int i=0; i < size; i++) 
-      emitdw(st.getSymbol(i), "0");
+      if (used.contains(st.getSymbol(i)))
+        emitdw(st.getSymbol(i), "0");
+  }
+  //-----------------------------------------
+  // After a syntax error, write the listing and the code
+  // for what was parsed before it, which the error 
+  // message then follows.  The program is incomplete, so
+  // no dead stores are removed.
+  //
+  public void endCodeAtError()
+  {
+    if (ended)
+      return;
+    ended = true;
+    endStatement();
+    writeStatements(outFile, 0, program.size(), null);
+  }
+  //-----------------------------------------
+  // Remove each assignment whose variable is not read
+  // before it is assigned again or the program ends.  
+  // The program is straight-line code, so this is one
+  // backward pass that tracks the variables live at
+  // each point.  An assignment is pc x, side-effect-free
+  // code and stav.  Other code only adds the variables 
+  // it reads to the live set.  A div by anything but a
+  // nonzero constant is not side-effect-free, since
+  // dividing by 0 stops the program.
+  //
+  private void removeDeadStores()
+  {
+    HashSet<String> live = new HashSet<String>();
+    for (int i = program.size() - 1; i >= 0; i--)
+    {
+      ArrayList<S2Instruction> code = program.get(i).code;
+      int start = assignmentStart(code);
+      if (start < 0)
+        addReads(live, code, 0);
+      else
+      {
+        String target = code.get(start).opnd;
+        if (!live.contains(target))
+          code.clear();
+        else
+        {
+          live.remove(target);
+          addReads(live, code, start);
+        }
+      }
+    }
+  }
+  //-----------------------------------------
+  // If code is a simple assignment, return the index of
+  // its pc.  Otherwise, return -1.
+  //
+  private int assignmentStart(ArrayList<S2Instruction> code)
+  {
+    int n = code.size();
+    if (n < 3 || !code.get(0).is("pc") || 
+                                 !code.get(n - 1).is("stav"))
+      return -1;
+    for (int i = 1; i < n - 1; i++)
+    {
+      S2Instruction inst = code.get(i);
+      if (!inst.is("p") && !inst.is("pwc") &&
+          !inst.is("add") && !inst.is("sub") &&
+          !inst.is("mult") && !inst.is("div"))
+        return -1;
+      if (inst.is("div") && !isNonzero(code.get(i - 1)))
+        return -1;
+    }
+    return 0;
+  }
+  //-----------------------------------------
+  // True if inst pushes a constant that is not 0 as a
+  // 16-bit word.
+  //
+  private boolean isNonzero(S2Instruction inst)
+  {
+    return inst.is("pwc") && 
+                       (short)Integer.parseInt(inst.opnd) != 0;
+  }
+  //-----------------------------------------
+  private void addReads(HashSet<String> live, 
+                  ArrayList<S2Instruction> code, int from)
+  {
+    for (int i = from; i < code.size(); i++)
+      if (code.get(i).is("p"))
+        live.add(code.get(i).opnd);
   }
 }                                    // end of S2CodeGen
+//======================================================
+class S2Instruction
+{
+  public String op;
+  public String opnd;    // null if op has no operand
+  //-----------------------------------------
+  public S2Instruction(String op, String opnd)
+  {
+    this.op = op;
+    this.opnd = opnd;
+  }
+  //-----------------------------------------
+  public boolean is(String op)
+  {
+    return this.op.equals(op);
+  }
+}                                 // end of S2Instruction
+//======================================================
+class S2Statement
+{
+  public ArrayList<String> comments;     // lines before it
+  public ArrayList<S2Instruction> code;
+  //-----------------------------------------
+  public S2Statement(ArrayList<String> comments,
+                     ArrayList<S2Instruction> code)
+  {
+    this.comments = comments;
+    this.code = code;
+  }
+}                                   // end of S2Statement
@@ -1,57 +1,858 @@
 // Hand-written S3 compiler
 import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
 //======================================================
 class S3
 {  
   public static void main(String[] args) throws 
                                              IOException
   {
-    System.out.println("S3 compiler written by John Berean");
+    // -serve=file runs a compile daemon on a Unix-domain
+    // socket at file, which only its owner can connect to;
+    // -connect=file sends the rest of the command line to
+    // it and exits with its status.
+    if (args.length == 1 && args[0].startsWith("-serve="))
+    {
+      new S3Daemon(Paths.get(args[0].substring(7))).serve();
+      return;
+    }
+    int status;
+    if (args.length > 0 && args[0].startsWith("-connect="))
+      status = S3Daemon.request(Paths.get(args[0].substring(9)),
+                     Arrays.copyOfRange(args, 1, args.length));
+    else
+      status = run(args, null, System.out, System.err);
+    if (status != 0)
+      System.exit(status);
+  }
+  //-----------------------------------------
+  // Carry out one command line, relative to directory dir
+  // (null for the current one).  Returns the exit status.
+  //
+  static int run(String[] args, File dir, PrintStream out, 
+                        PrintStream err) throws IOException
+  {
+    out.println("S3 compiler written by John Berean");
 
-    if (args.length != 1)
+    S3Options options = new S3Options();
+    options.dir = dir;
+    int argIndex = 0;
+    try
     {
-      System.err.println("Wrong number cmd line args");  
-      System.exit(1);
+      argIndex = options.parse(args);
+    }
+    catch (IllegalArgumentException e)
+    {
+      err.println(e.getMessage());
+      return 1;
+    }
+    if (options.cacheDir != null)
+      options.cache = S3Cache.open(
+                          new File(options.path(options.cacheDir)), 
+                          options.cacheSize);
+
+    if (options.batch)
+    {
+      if (argIndex == args.length)
+      {
+        err.println("No source files for batch");  
+        return 1;
+      }
+      int failed = compileBatch(
+            Arrays.copyOfRange(args, argIndex, args.length), 
+                                        options, out, err);
+      if (options.peepStats)
+        options.peephole.printStats(out);
+      if (options.cacheStats)
+        options.cache.printStats(out);
+      return failed > 0 ? 1 : 0;
     }
 
-    // set to true to debug token manager
-    boolean debug = true;
+    if (argIndex != args.length - 1)
+    {
+      err.println("Wrong number cmd line args");  
+      return 1;
+    }
 
+    String error = compile(args[argIndex], options.peephole, 
+                                                   options);
+    if (error != null)
+    {
+      err.println(error);
+      return 1;
+    }
+    if (options.peepStats)
+      options.peephole.printStats(out);
+    if (options.cacheStats)
+      options.cache.printStats(out);
+    return 0;
+  }
+  //-----------------------------------------
+  // Compile baseName.s to baseName.a with its own symbol
+  // table, token manager, code generator and parser.
+  // Returns null, or the error message, which is also
+  // written to the .a file.
+  //
+  static String compile(String baseName, S3Peephole peephole,
+                     S3Options options) throws IOException
+  {
     // build the input and output file names
-    String inFileName = args[0] + ".s";
-    String outFileName = args[0] + ".a";
+    String inFileName = options.path(baseName + ".s");
+    String outFileName = options.path(baseName + ".a");
+
+    String mapFileName = options.listing == S3Output.MAP ? 
+                        options.path(baseName + ".map") : null;
+
+    // reuse the output of an identical earlier compile
+    String key = null;
+    if (options.cache != null && options.traceFileName == null)
+    {
+      key = options.cache.key(inFileName, options.key());
+      if (key != null && 
+          options.cache.fetch(key, outFileName, mapFileName))
+        return null;
+    }
 
     // construct file objects
-    Scanner inFile = new Scanner(new File(inFileName));
-    PrintWriter outFile = new PrintWriter(outFileName);
+    S3SourceReader inFile = 
+                   new S3SourceReader(new File(inFileName));
+    S3Output outFile = new S3Output(outFileName, mapFileName);
 
     // identify compiler/author in the output file
     outFile.println("; from S3 compiler written by John Berean");
 
     // construct objects that make up compiler
     S3SymTab st = new S3SymTab();
-    S3TokenMgr tm =  new S3TokenMgr(inFile, outFile, debug);
-    S3CodeGen cg = new S3CodeGen(outFile, st);
-    S3Parser parser = new S3Parser(st, tm, cg);
+    S3CodeGen cg = new S3CodeGen(outFile, st, peephole, 
+                                         options.evaluate);
+    S3Trace trace = new S3Trace(options.traceLevel, cg, 
+                      options.traceFileName == null ? null : 
+                      options.path(options.traceFileName));
+    S3TokenMgr tm = new S3TokenMgr(inFile, st, cg, trace, 
+                                          options.listing);
 
-    // parse and translate
+    // parse and translate, a big source in parts on all
+    // cores if it can be cut into parts
+    String error = null;
     try
     {
-      parser.parse();
+      if (!options.parallel || 
+          options.traceFileName != null || 
+          !S3Parallel.generate(inFile, cg, peephole, options))
+        new S3Parser(st, tm, cg, trace).parse();
     }      
     catch (RuntimeException e) 
     {
-      System.err.println(e.getMessage());
-      outFile.println(e.getMessage());
-      outFile.close();
-      System.exit(1);
+      error = e.getMessage();
+      cg.endCodeAtError();
+      outFile.println(error);
     }
 
     outFile.close();
+    trace.close();
+    if (key != null && error == null)
+      options.cache.store(key, outFileName, mapFileName);
+    return error;
+  }
+  //-----------------------------------------
+  // Compile every named source concurrently on a fork-join
+  // pool.  A name is a base name, a .s file, or a directory
+  // standing for all the .s files in it.  Errors are
+  // reported per file in input order and do not stop the
+  // batch.  Returns the number of files that failed.
+  //
+  static int compileBatch(String[] names, S3Options options,
+                          PrintStream out, PrintStream err)
+  {
+    ArrayList<String> baseNames = new ArrayList<String>();
+    for (String name : names)
+    {
+      File dir = new File(options.path(name));
+      String[] sources = dir.isDirectory() ? 
+              dir.list((d, n) -> n.endsWith(".s")) : null;
+      if (sources == null)
+        baseNames.add(name.endsWith(".s") ? 
+                 name.substring(0, name.length() - 2) : name);
+      else
+      {
+        Arrays.sort(sources);
+        for (String s : sources)
+          baseNames.add(new File(name, 
+                 s.substring(0, s.length() - 2)).getPath());
+      }
+    }
+
+    int count = baseNames.size();
+    String[] errors = new String[count];
+    ForkJoinPool pool = new ForkJoinPool();
+    ArrayList<ForkJoinTask<?>> tasks = 
+                                new ArrayList<ForkJoinTask<?>>();
+    long start = System.nanoTime();
+    for (int i = 0; i < count; i++)
+    {
+      int f = i;
+      tasks.add(pool.submit(() ->
+      {
+        S3Peephole peephole = new S3Peephole(options.peephole);
+        try
+        {
+          errors[f] = compile(baseNames.get(f), peephole, 
+                                                  options);
+        }
+        catch (Throwable e)   // a stack overflow too
+        {
+          errors[f] = e.toString();
+        }
+        options.peephole.addHits(peephole);
+      }));
+    }
+    for (ForkJoinTask<?> task : tasks)
+      task.join();
+    long wall = System.nanoTime() - start;
+    pool.shutdown();
+
+    int failed = 0;
+    for (int i = 0; i < count; i++)
+      if (errors[i] != null)
+      {
+        failed++;
+        err.println(baseNames.get(i) + ".s: " + errors[i]);
+      }
+
+    double ms = Math.max(wall / 1e6, 1e-3);
+    out.printf("%d files, %d failed, %d threads%n",
+               count, failed, pool.getParallelism());
+    out.printf("%.1f ms wall, %.1f files/s, %.3f ms/file%n", 
+               ms, count * 1000 / ms, ms / Math.max(count, 1));
+    return failed;
   }
 }                                           // end of S3
 //======================================================
+class S3Options
+{
+  S3Peephole peephole = new S3Peephole(); // rule settings
+  boolean peepStats = false;
+  boolean evaluate = true;
+  int traceLevel = S3Trace.TOKENS;
+  String traceFileName = null;
+  int listing = S3Output.FULL;
+  boolean batch = false;
+  boolean parallel = false;
+  String cacheDir = null;
+  long cacheSize = 64 << 20;          // in bytes
+  boolean cacheStats = false;
+  S3Cache cache = null;         // opened from cacheDir
+  File dir = null;              // null for current one
+  //-----------------------------------------
+  // Options come before the base name(s):
+  //   -nopeep=r1,r2,...  disable peephole rules (or all)
+  //   -peepstats         display peephole rule hits
+  //   -nopeval           do not run partial evaluator
+  //   -trace=level       off, tokens (default) or parse
+  //   -tracefile=name    write trace to binary file name
+  //   -listing=mode      full (default), none or map
+  //   -batch             compile many sources concurrently
+  //   -parallel          generate code on all cores
+  //   -cache=dir         reuse output of unchanged sources
+  //   -cachesize=mb      evict past this size (default 64)
+  //   -cachestats        display cache hits and misses
+  // Returns the index of the first argument that is not
+  // an option.
+  //
+  public int parse(String[] args)
+  {
+    int argIndex = 0;
+    for (; argIndex < args.length && 
+                 args[argIndex].startsWith("-"); argIndex++)
+    {
+      String arg = args[argIndex];
+      if (arg.startsWith("-nopeep="))
+        for (String rule : arg.substring(8).split(","))
+          peephole.setEnabled(rule, false);
+      else if (arg.equals("-peepstats"))
+        peepStats = true;
+      else if (arg.equals("-nopeval"))
+        evaluate = false;
+      else if (arg.startsWith("-trace="))
+        traceLevel = S3Trace.getLevel(arg.substring(7));
+      else if (arg.startsWith("-tracefile="))
+        traceFileName = arg.substring(11);
+      else if (arg.startsWith("-listing="))
+        listing = S3Output.getListing(arg.substring(9));
+      else if (arg.equals("-batch"))
+        batch = true;
+      else if (arg.equals("-parallel"))
+        parallel = true;
+      else if (arg.startsWith("-cache="))
+        cacheDir = arg.substring(7);
+      else if (arg.startsWith("-cachesize="))
+        cacheSize = Long.parseLong(arg.substring(11)) << 20;
+      else if (arg.equals("-cachestats"))
+        cacheStats = true;
+      else
+        throw new IllegalArgumentException(
+                                "Unknown option " + arg);
+    }
+    if (batch && traceFileName != null)
+      throw new IllegalArgumentException(
+                        "-tracefile cannot be used with -batch");
+    if (cacheStats && cacheDir == null)
+      throw new IllegalArgumentException(
+                        "-cachestats needs -cache");
+    return argIndex;
+  }
+  //-----------------------------------------
+  // The options that affect the output, for cache keys.
+  //
+  public String key()
+  {
+    StringBuilder key = new StringBuilder("S3 trace=" + 
+          traceLevel + " listing=" + listing + " peval=" + 
+          evaluate + " peep=");
+    for (int r = 0; r < S3Peephole.RULES.length; r++)
+      key.append(peephole.isEnabled(r) ? '1' : '0');
+    return key.toString();
+  }
+  //-----------------------------------------
+  // Resolve a file name against dir.
+  //
+  public String path(String name)
+  {
+    File file = new File(name);
+    if (dir == null || file.isAbsolute())
+      return name;
+    return new File(dir, name).getPath();
+  }
+}                                    // end of S3Options
+//======================================================
+// Long-lived compile service on a Unix-domain socket.  A
+// request makes the daemon write files as its owner, so
+// only the owner may connect: the socket is bound in a new
+// directory only the owner can enter, made owner-only, 
+// and then moved to where clients look for it.  Each 
+// request carries the dialect, the client's working 
+// directory and its command line; the reply carries the 
+// exit status and what the compiler wrote to stdout and
+// stderr.
+//
+class S3Daemon
+{
+  private Path path;
+  private ServerSocketChannel server;
+  private ExecutorService pool;
+  //-----------------------------------------
+  public S3Daemon(Path path) throws IOException
+  {
+    this.path = path.toAbsolutePath();
+    Path dir = Files.createTempDirectory(
+        this.path.getParent(), ".daemon", 
+        PosixFilePermissions.asFileAttribute(
+                  PosixFilePermissions.fromString("rwx------")));
+    Path socket = dir.resolve("socket");
+    server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+    server.bind(UnixDomainSocketAddress.of(socket));
+    Files.setPosixFilePermissions(socket, 
+                   PosixFilePermissions.fromString("rw-------"));
+    Files.move(socket, this.path, 
+                              StandardCopyOption.ATOMIC_MOVE);
+    Files.delete(dir);
+    Runtime.getRuntime().addShutdownHook(new Thread(() ->
+    {
+      try
+      {
+        Files.deleteIfExists(this.path);
+      }
+      catch (IOException e)
+      {
+      }
+    }));
+    pool = Executors.newCachedThreadPool();
+  }
+  //-----------------------------------------
+  // Accept requests until killed, each on its own thread
+  // with its own compiler objects.
+  //
+  public void serve() throws IOException
+  {
+    System.out.println("S3 daemon listening on " + path);
+    while (true)
+    {
+      SocketChannel channel = server.accept();
+      pool.execute(() -> handle(channel));
+    }
+  }
+  //-----------------------------------------
+  private void handle(SocketChannel channel)
+  {
+    try (SocketChannel s = channel)
+    {
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(Channels.newInputStream(s)));
+      DataOutputStream reply = new DataOutputStream(
+         new BufferedOutputStream(Channels.newOutputStream(s)));
+      String dialect = in.readUTF();
+      File dir = new File(in.readUTF());
+      String[] args = new String[in.readInt()];
+      for (int i = 0; i < args.length; i++)
+        args[i] = in.readUTF();
+
+      ByteArrayOutputStream outBytes = 
+                                  new ByteArrayOutputStream();
+      ByteArrayOutputStream errBytes = 
+                                  new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(outBytes, true);
+      PrintStream err = new PrintStream(errBytes, true);
+      int status = 1;
+      if (!dialect.equals("S3"))
+        err.println("Daemon compiles S3, not " + dialect);
+      else
+        try
+        {
+          status = S3.run(args, dir, out, err);
+        }
+        catch (Throwable e)   // status 1, as from the CLI
+        {
+          err.println(e);
+        }
+
+      reply.writeInt(status);
+      writeBytes(reply, outBytes.toByteArray());
+      writeBytes(reply, errBytes.toByteArray());
+      reply.flush();
+    }
+    catch (IOException e)
+    {
+      System.err.println("Request failed: " + e.getMessage());
+    }
+  }
+  //-----------------------------------------
+  // Send a command line to the daemon at path, copy its
+  // output to stdout and stderr, and return its status.
+  //
+  public static int request(Path path, String[] args) 
+                                        throws IOException
+  {
+    try (SocketChannel s = SocketChannel.open(
+                           UnixDomainSocketAddress.of(path)))
+    {
+      DataOutputStream request = new DataOutputStream(
+         new BufferedOutputStream(Channels.newOutputStream(s)));
+      request.writeUTF("S3");
+      request.writeUTF(System.getProperty("user.dir"));
+      request.writeInt(args.length);
+      for (String arg : args)
+        request.writeUTF(arg);
+      request.flush();
+
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(Channels.newInputStream(s)));
+      int status = in.readInt();
+      System.out.write(readBytes(in));
+      System.out.flush();
+      System.err.write(readBytes(in));
+      System.err.flush();
+      return status;
+    }
+  }
+  //-----------------------------------------
+  private static void writeBytes(DataOutputStream out, 
+                          byte[] bytes) throws IOException
+  {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+  //-----------------------------------------
+  private static byte[] readBytes(DataInputStream in) 
+                                        throws IOException
+  {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return bytes;
+  }
+}                                     // end of S3Daemon
+//======================================================
+// On-disk cache of compiled output, keyed by a hash of
+// the source bytes, the options that affect the output and
+// the compiler build.  Entries are files hash.a (and
+// hash.map) in the cache directory; past the size cap the
+// least recently used are evicted.
+//
+class S3Cache
+{
+  // one per directory, shared by batch and daemon compiles
+  private static final HashMap<File, S3Cache> caches = 
+                                  new HashMap<File, S3Cache>();
+
+  private File dir;
+  private long capacity;                  // in bytes
+  private long size;                      // in bytes
+  private LinkedHashMap<String, Long> entries;  // LRU first
+  private String build;
+  private long hits, misses, evictions;
+  //-----------------------------------------
+  public static synchronized S3Cache open(File dir, 
+                          long capacity) throws IOException
+  {
+    dir = dir.getCanonicalFile();
+    S3Cache cache = caches.get(dir);
+    if (cache == null)
+    {
+      cache = new S3Cache(dir);
+      caches.put(dir, cache);
+    }
+    cache.setCapacity(capacity);
+    return cache;
+  }
+  //-----------------------------------------
+  private S3Cache(File dir) throws IOException
+  {
+    this.dir = dir;
+    Files.createDirectories(dir.toPath());
+    entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    // rebuild the LRU order from modification times
+    File[] files = dir.listFiles();
+    Arrays.sort(files, 
+                Comparator.comparingLong(File::lastModified));
+    for (File file : files)
+    {
+      String name = file.getName();
+      int dot = name.indexOf('.');
+      if (name.endsWith(".tmp"))      // left by a crash
+        file.delete();
+      else if (dot > 0)
+      {
+        entries.merge(name.substring(0, dot), file.length(), 
+                                                  Long::sum);
+        size += file.length();
+      }
+    }
+
+    // a rebuilt compiler must not reuse old entries
+    URL classFile = S3Cache.class.getResource("S3.class");
+    build = classFile + "@" + 
+               classFile.openConnection().getLastModified();
+  }
+  //-----------------------------------------
+  private synchronized void setCapacity(long capacity)
+  {
+    this.capacity = capacity;
+    evict();
+  }
+  //-----------------------------------------
+  // Hash of the source file and options, or null if the
+  // source cannot be read.
+  //
+  public String key(String inFileName, String options)
+  {
+    try
+    {
+      byte[] source = Files.readAllBytes(Paths.get(inFileName));
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      md.update((build + "\n" + options + "\n").getBytes(
+                                   StandardCharsets.UTF_8));
+      return HexFormat.of().formatHex(md.digest(source));
+    }
+    catch (IOException | NoSuchAlgorithmException e)
+    {
+      return null;
+    }
+  }
+  //-----------------------------------------
+  // Copy the entry for key to the output files.  Returns
+  // false on a miss.
+  //
+  public boolean fetch(String key, String outFileName, 
+                                         String mapFileName)
+  {
+    Path entry = dir.toPath().resolve(key + ".a");
+    try
+    {
+      if (mapFileName != null)
+        Files.copy(dir.toPath().resolve(key + ".map"), 
+                   Paths.get(mapFileName), 
+                   StandardCopyOption.REPLACE_EXISTING);
+      Files.copy(entry, Paths.get(outFileName), 
+                 StandardCopyOption.REPLACE_EXISTING);
+      entry.toFile().setLastModified(
+                                  System.currentTimeMillis());
+    }
+    catch (IOException e)
+    {
+      synchronized (this)
+      {
+        misses++;
+      }
+      return false;
+    }
+    synchronized (this)
+    {
+      hits++;
+      if (entries.get(key) == null)   // added by another run
+        add(key, entry.toFile().length());
+    }
+    return true;
+  }
+  //-----------------------------------------
+  // Add the output files as the entry for key.  Failures
+  // only cost a later miss.
+  //
+  public void store(String key, String outFileName, 
+                                         String mapFileName)
+  {
+    try
+    {
+      long bytes = 0;
+      if (mapFileName != null)
+        bytes += put(Paths.get(mapFileName), key + ".map");
+      bytes += put(Paths.get(outFileName), key + ".a");
+      synchronized (this)
+      {
+        add(key, bytes);
+        evict();
+      }
+    }
+    catch (IOException e)
+    {
+    }
+  }
+  //-----------------------------------------
+  // Copy to a temporary file, force it to disk, then rename
+  // it into place, so a crash never leaves a partial entry.
+  //
+  private long put(Path from, String name) throws IOException
+  {
+    Path tmp = Files.createTempFile(dir.toPath(), name, ".tmp");
+    try
+    {
+      Files.copy(from, tmp, 
+                 StandardCopyOption.REPLACE_EXISTING);
+      try (FileChannel channel = 
+                FileChannel.open(tmp, StandardOpenOption.WRITE))
+      {
+        channel.force(true);
+      }
+      Files.move(tmp, dir.toPath().resolve(name), 
+                 StandardCopyOption.ATOMIC_MOVE);
+    }
+    finally
+    {
+      Files.deleteIfExists(tmp);
+    }
+    return Files.size(dir.toPath().resolve(name));
+  }
+  //-----------------------------------------
+  private void add(String key, long bytes)
+  {
+    Long old = entries.put(key, bytes);
+    size += bytes - (old == null ? 0 : old);
+  }
+  //-----------------------------------------
+  // Drop least recently used entries until under capacity.
+  // The .a file goes first, since it marks an entry present.
+  //
+  private void evict()
+  {
+    Iterator<Map.Entry<String, Long>> it = 
+                                 entries.entrySet().iterator();
+    while (size > capacity && it.hasNext())
+    {
+      Map.Entry<String, Long> entry = it.next();
+      new File(dir, entry.getKey() + ".a").delete();
+      new File(dir, entry.getKey() + ".map").delete();
+      size -= entry.getValue();
+      it.remove();
+      evictions++;
+    }
+  }
+  //-----------------------------------------
+  public synchronized void printStats(PrintStream out)
+  {
+    out.printf("cache: %d hits, %d misses, %d evictions, " +
+               "%d entries, %d of %d KB%n", hits, misses, 
+               evictions, entries.size(), size / 1024, 
+               capacity / 1024);
+  }
+}                                      // end of S3Cache
+//======================================================
+// Generates the code of a big source on all cores.  The
+// source is cut before lines that a scan for braces, 
+// parentheses, strings and comments says begin a 
+// top-level statement, and each part is parsed with its
+// own token manager, symbol table and code generator on
+// the fork-join pool.  A part must stop exactly where the
+// next one starts, and none may have an error, or the 
+// source is compiled sequentially after all.  Each 
+// part's strings are numbered on from the part before 
+// it, and the parts' statements and symbols are joined
+// in order, so the code is what a sequential compile 
+// would have generated.
+//
+class S3Parallel
+{
+  private static final int MIN_PART = 1 << 14;   // chars
+  //-----------------------------------------
+  // Generate the code for inFile into cg.  Returns false,
+  // with cg untouched, if it was not done.
+  //
+  public static boolean generate(S3SourceReader inFile, 
+           S3CodeGen cg, S3Peephole peephole, 
+                                       S3Options options)
+  {
+    int cores = Runtime.getRuntime().availableProcessors();
+    if (cores < 2)
+      return false;
+    inFile.readAll();
+    char[] text = inFile.getChars();
+    int count = inFile.getCount();
+    int parts = Math.min(count / MIN_PART, 4 * cores);
+    if (parts < 2)
+      return false;
+    ArrayList<Integer> lines = new ArrayList<Integer>();
+    ArrayList<Integer> offsets = new ArrayList<Integer>();
+    cut(text, count, parts, lines, offsets);
+    int n = lines.size();
+    if (n < 2)
+      return false;
+
+    S3CodeGen[] gens = new S3CodeGen[n];
+    S3Peephole[] peepholes = new S3Peephole[n];
+    ArrayList<ForkJoinTask<Boolean>> tasks = 
+                       new ArrayList<ForkJoinTask<Boolean>>();
+    for (int i = 0; i < n; i++)
+    {
+      int p = i;
+      tasks.add(ForkJoinTask.adapt(() ->
+      {
+        peepholes[p] = new S3Peephole(peephole);
+        S3SymTab st = new S3SymTab();
+        gens[p] = new S3CodeGen(null, st, peepholes[p], 
+                                         options.evaluate);
+        gens[p].setPart(p + 1 < n ? lines.get(p + 1) : 0, 
+                                                    p > 0);
+        try
+        {
+          S3Trace trace = new S3Trace(options.traceLevel, 
+                                            gens[p], null);
+          S3TokenMgr tm = new S3TokenMgr(
+                 new S3SourceReader(inFile, offsets.get(p)), 
+                     st, gens[p], trace, options.listing);
+          tm.startAt(lines.get(p));
+          new S3Parser(st, tm, gens[p], trace).parse();
+        }
+        catch (IOException | RuntimeException e)
+        {
+          return false;
+        }
+        return gens[p].isComplete();
+      }));
+    }
+    ForkJoinTask.invokeAll(tasks);
+    for (ForkJoinTask<Boolean> task : tasks)
+      if (!task.join())
+        return false;
+
+    // each part's strings follow the parts' before it
+    ArrayList<ForkJoinTask<?>> numbering = 
+                             new ArrayList<ForkJoinTask<?>>();
+    int first = gens[0].getLabelCount();
+    for (int p = 1; p < n; p++)
+    {
+      int part = p;
+      int from = first;
+      first += gens[p].getLabelCount();
+      numbering.add(ForkJoinTask.adapt(() -> 
+                          gens[part].numberStrings(from)));
+    }
+    ForkJoinTask.invokeAll(numbering);
+
+    for (int p = 0; p < n; p++)
+    {
+      cg.join(gens[p]);
+      peephole.addHits(peepholes[p]);
+    }
+    cg.endCode(n);
+    return true;
+  }
+  //-----------------------------------------
+  // Add to lines and offsets where to cut text into about
+  // parts parts, line 1 first.  A cut is made at the 
+  // first token of a line that starts outside any { }, 
+  // ( ) or string, after a ; or } or nothing.
+  //
+  private static void cut(char[] text, int count, 
+                     int parts, ArrayList<Integer> lines,
+                                  ArrayList<Integer> offsets)
+  {
+    lines.add(1);
+    offsets.add(0);
+    int next = count / parts;  // cut at a line from here
+    int line = 1;
+    int lineStart = 0;
+    boolean clean = true;      // line starts a statement
+    boolean first = true;      // no token on line yet
+    int braces = 0;
+    int parens = 0;
+    boolean inString = false;
+    boolean ended = true;      // last token ends one
+    for (int i = 0; i < count; i++)
+    {
+      char c = text[i];
+      if (c == '\n' || c == '\r')
+      {
+        if (c == '\r' && i + 1 < count && text[i + 1] == '\n')
+          i++;
+        line++;
+        lineStart = i + 1;
+        clean = !inString && braces == 0 && parens == 0 && 
+                                                     ended;
+        first = true;
+      }
+      else if (inString)
+      {
+        if (c == '"')
+          inString = false;
+      }
+      else if (c == '/' && i + 1 < count && 
+                                        text[i + 1] == '/')
+      {
+        while (i + 1 < count && text[i + 1] != '\n' && 
+                                       text[i + 1] != '\r')
+          i++;
+      }
+      else if (!Character.isWhitespace(c))
+      {
+        if (first && clean && lineStart >= next)
+        {
+          lines.add(line);
+          offsets.add(lineStart);
+          next = (int)((long)lines.size() * count / parts);
+        }
+        first = false;
+        if (c == '"')
+          inString = true;
+        else if (c == '{')
+          braces++;
+        else if (c == '}')
+          braces--;
+        else if (c == '(')
+          parens++;
+        else if (c == ')')
+          parens--;
+        ended = c == ';' || c == '}';
+      }
+    }
+  }
+}                                     // end of S3Parallel
+//======================================================
 interface S3Constants
 {
   // integers that identify token kinds
@@ -103,19 +904,29 @@ interface S3Constants
 class S3SymTab
 {
   private ArrayList<String> symbol;
+  private int[] table;         // hash index into symbol
+  private String[] pool;       // interned names
+  private int poolSize;
   //-----------------------------------------
   public S3SymTab()
   {
     symbol = new ArrayList<String>();
+    table = new int[64];
+    pool = new String[64];
   }
   //-----------------------------------------
-  public void enter(String s)
+  public int enter(String s)
   {
-    int index = symbol.indexOf(s);
+    int index = find(s);
 
     // if s is not in symbol, then add it 
     if (index < 0) 
+    {
+      index = symbol.size();
       symbol.add(s);
+      insert(s, index);
+    }
+    return index;
   }
   //-----------------------------------------
   public String getSymbol(int index)
@@ -127,639 +938,2751 @@ class S3SymTab
   {
     return symbol.size();
   }
-}                                     // end of S3SymTab
-//======================================================
-class S3TokenMgr implements S3Constants
-{
-  private Scanner inFile;          
-  private PrintWriter outFile;
-  private boolean debug;
-  private char currentChar;
-  private int currentColumnNumber;
-  private int currentLineNumber;
-  private String inputLine;    // holds 1 line of input
-  private Token token;         // holds 1 token
-  private StringBuffer buffer; // token image built here
-  private boolean tF  = false;// token image built here
-  //-----------------------------------------
-  public S3TokenMgr(Scanner inFile, 
-                    PrintWriter outFile, boolean debug)
-  {
-    this.inFile = inFile;
-    this.outFile = outFile;
-    this.debug = debug;
-    currentChar = '\n';        //  '\n' triggers read
-    currentLineNumber = 0;
-    buffer = new StringBuffer();
-  }
   //-----------------------------------------
-  public Token getNextToken()
+  // Return the name in chars[start..start + length) as a
+  // String, always the same String for the same name, 
+  // and built only the first time the name is seen.  The
+  // token managers intern identifiers and numbers 
+  // straight from the source buffer.
+  //
+  public String intern(char[] chars, int start, int length)
   {
-    // skip whitespace
-    while (Character.isWhitespace(currentChar))
-      getNextChar();
-
-    // construct token to be returned to parser
-    token = new Token();   
-    token.next = null;
-
-    // save start-of-token position
-    token.beginLine = currentLineNumber;
-    token.beginColumn = currentColumnNumber;
+    int h = 0;
+    for (int i = 0; i < length; i++)
+      h = 31 * h + chars[start + i];   // as String.hashCode
+    int mask = pool.length - 1;
+    int i = (h ^ (h >>> 16)) & mask;
+    for (; pool[i] != null; i = (i + 1) & mask)
+      if (matches(pool[i], chars, start, length))
+        return pool[i];
 
-    // check for EOF
-    if (currentChar == EOF)
+    String s = new String(chars, start, length);
+    pool[i] = s;
+    if (2 * ++poolSize > pool.length)  // keep half empty
     {
-      token.image = "<EOF>";
-      token.endLine = currentLineNumber;
-      token.endColumn = currentColumnNumber;
-      token.kind = EOF;
+      String[] old = pool;
+      pool = new String[2 * old.length];
+      mask = pool.length - 1;
+      for (String name : old)
+        if (name != null)
+        {
+          int j = hash(name) & mask;
+          while (pool[j] != null)
+            j = (j + 1) & mask;
+          pool[j] = name;
+        }
     }
-    else 
-    if (currentChar == '"')
+    return s;
+  }
+  //-----------------------------------------
+  private static boolean matches(String s, char[] chars, 
+                                    int start, int length)
+  {
+    if (s.length() != length)
+      return false;
+    for (int i = 0; i < length; i++)
+      if (s.charAt(i) != chars[start + i])
+        return false;
+    return true;
+  }
+  //-----------------------------------------
+  // Return the index of s in symbol, or -1.  table is an
+  // open-addressing hash index into symbol: each slot holds
+  // an index + 1, or 0 if empty.  Linear probing.
+  //
+  private int find(String s)
+  {
+    int mask = table.length - 1;
+    for (int i = hash(s) & mask; table[i] != 0; 
+                                        i = (i + 1) & mask)
+      if (symbol.get(table[i] - 1).equals(s))
+        return table[i] - 1;
+    return -1;
+  }
+  //-----------------------------------------
+  // Record in table that s is at index.  Keeps table at 
+  // most half full.
+  //
+  private void insert(String s, int index)
+  {
+    if (2 * (index + 1) > table.length)
+    {
+      table = new int[2 * table.length];
+      for (int i = 0; i < index; i++)
+        insert(symbol.get(i), i);
+    }
+    int mask = table.length - 1;
+    int i = hash(s) & mask;
+    while (table[i] != 0)
+      i = (i + 1) & mask;
+    table[i] = index + 1;
+  }
+  //-----------------------------------------
+  private static int hash(String s)
+  {
+    int h = s.hashCode();
+    return h ^ (h >>> 16);
+  }
+}                                     // end of S3SymTab
+//======================================================
+// Writes the output file through a reusable byte buffer
+// and a FileChannel, in large blocks.  Instructions and
+// dw's are laid out from fixed-width templates, giving 
+// the same bytes printf gave, but without parsing a 
+// format for every line.
+//
+class S3Output
+{
+  // listing modes: echo each source line as a comment,
+  // no echo, or no echo but a map file giving the line
+  // of the output file where each source line's code
+  // starts
+  public static final int FULL = 0;
+  public static final int NONE = 1;
+  public static final int MAP = 2;
+  private static final String[] LISTINGS = 
+                                  {"full", "none", "map"};
+
+  private static final byte[] NEWLINE = 
+                     System.lineSeparator().getBytes();
+  private static final byte[] INDENT =     // before op
+                               "          ".getBytes();
+  private static final byte[] GAP =        // op to opnd
+                                   "      ".getBytes();
+  private static final byte[] DW =         // label to value
+                             " dw        ".getBytes();
+  private FileChannel channel;  // null for a slice
+  private ByteBuffer buffer;
+  private int lines;            // lines written
+  private S3Output map;          // null if no map
+  private int[] marks;    // a slice's source, line pairs
+  private int markCount;
+  //-----------------------------------------
+  public S3Output(String fileName, String mapFileName) 
+                                        throws IOException
+  {
+    channel = new FileOutputStream(fileName).getChannel();
+    buffer = ByteBuffer.allocate(65536);
+    if (mapFileName != null)
+    {
+      map = new S3Output(mapFileName, null);
+      map.println("; source line, output line");
+    }
+  }
+  //-----------------------------------------
+  private S3Output()
+  {
+    buffer = ByteBuffer.allocate(4096);
+  }
+  //-----------------------------------------
+  // An empty slice of this output, which grows in memory,
+  // may be filled on another thread, and is then written
+  // here by append.
+  //
+  public S3Output slice()
+  {
+    S3Output slice = new S3Output();
+    if (map != null)
+      slice.marks = new int[64];
+    return slice;
+  }
+  //-----------------------------------------
+  // Write slice here.  Its map lines are numbered from 
+  // the line it starts on here.
+  //
+  public void append(S3Output slice)
+  {
+    for (int i = 0; i < slice.markCount; i += 2)
+      map.println(slice.marks[i] + " " + 
+                              (lines + slice.marks[i + 1]));
+    try
+    {
+      drain();
+      slice.buffer.flip();
+      write(slice.buffer);
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(
+                "Error writing output: " + e.getMessage());
+    }
+    lines += slice.lines;
+  }
+  //-----------------------------------------
+  // Listing mode named by name, which is full, none or 
+  // map.
+  //
+  public static int getListing(String name)
+  {
+    for (int i = 0; i < LISTINGS.length; i++)
+      if (LISTINGS[i].equals(name))
+        return i;
+    throw new IllegalArgumentException(
+                          "Unknown listing mode " + name);
+  }
+  //-----------------------------------------
+  // Map sourceLine to the next line written.
+  //
+  public void mark(int sourceLine)
+  {
+    if (marks == null)
+    {
+      map.println(sourceLine + " " + (lines + 1));
+      return;
+    }
+    if (markCount == marks.length)
+      marks = Arrays.copyOf(marks, 2 * markCount);
+    marks[markCount++] = sourceLine;
+    marks[markCount++] = lines + 1;
+  }
+  //-----------------------------------------
+  public void println()
+  {
+    newLine();
+  }
+  //-----------------------------------------
+  public void println(String s)
+  {
+    print(s);
+    newLine();
+  }
+  //-----------------------------------------
+  // Same as printf("          %-4s      %s%n", op, opnd),
+  // or printf("          %-4s%n", op) if opnd is null.
+  //
+  public void instruction(String op, String opnd)
+  {
+    put(INDENT);
+    print(op);
+    pad(op.length(), 4);
+    if (opnd != null)
+    {
+      put(GAP);
+      print(opnd);
+    }
+    newLine();
+  }
+  //-----------------------------------------
+  // Same as printf("%-9s dw        %s%n", label + ":", value).
+  //
+  public void dw(String label, String value)
+  {
+    print(label);
+    put((byte)':');
+    pad(label.length() + 1, 9);
+    put(DW);
+    print(value);
+    newLine();
+  }
+  //-----------------------------------------
+  public void close()
+  {
+    if (map != null)
+      map.close();
+    try
+    {
+      drain();
+      channel.close();
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(
+                "Error writing output: " + e.getMessage());
+    }
+  }
+  //-----------------------------------------
+  // ASCII chars go straight into buffer; anything else 
+  // is encoded with the default charset, as PrintWriter
+  // does.
+  //
+  private void print(String s)
+  {
+    int length = s.length();
+    for (int i = 0; i < length; i++)
+    {
+      char c = s.charAt(i);
+      if (c >= 128)
+      {
+        put(s.substring(i).getBytes());
+        return;
+      }
+      put((byte)c);
+    }
+  }
+  //-----------------------------------------
+  private void newLine()
+  {
+    put(NEWLINE);
+    lines++;
+  }
+  //-----------------------------------------
+  private void pad(int length, int width)
+  {
+    for (int i = length; i < width; i++)
+      put((byte)' ');
+  }
+  //-----------------------------------------
+  private void put(byte b)
+  {
+    if (!buffer.hasRemaining())
+    {
+      if (channel == null)            // a slice grows
+        buffer = ByteBuffer.allocate(2 * buffer.capacity())
+                                       .put(buffer.flip());
+      else
+        drainChecked();
+    }
+    buffer.put(b);
+  }
+  //-----------------------------------------
+  private void put(byte[] bytes)
+  {
+    for (byte b : bytes)
+      put(b);
+  }
+  //-----------------------------------------
+  private void drainChecked()
+  {
+    try
+    {
+      drain();
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(
+                "Error writing output: " + e.getMessage());
+    }
+  }
+  //-----------------------------------------
+  private void drain() throws IOException
+  {
+    buffer.flip();
+    write(buffer);
+    buffer.clear();
+  }
+  //-----------------------------------------
+  private void write(ByteBuffer bytes) throws IOException
+  {
+    while (bytes.hasRemaining())
+      channel.write(bytes);
+  }
+}                                     // end of S3Output
+//======================================================
+// Reads the source file a line at a time into a reusable
+// char buffer, decoding with the default charset as
+// Scanner does.  Small files are read through a 
+// FileChannel and big ones are memory mapped.  Lines end
+// with \n, \r\n or \r.
+//
+class S3SourceReader
+{
+  private static final long MAP_SIZE = 1 << 20;  // bytes
+  private FileChannel channel;
+  private ByteBuffer bytes;
+  private boolean mapped;
+  private CharsetDecoder decoder;
+  private boolean endOfInput;  // everything decoded
+  private char[] buffer;       // decoded chars
+  private int count;           // chars in buffer
+  private int lineStart;       // current line is in
+  private int lineEnd;         //   buffer[lineStart..lineEnd)
+  private int next;            // start of next line
+  //-----------------------------------------
+  public S3SourceReader(File file) throws IOException
+  {
+    channel = new FileInputStream(file).getChannel();
+    mapped = channel.size() >= MAP_SIZE;
+    if (mapped)
+      bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                                           channel.size());
+    else
+    {
+      bytes = ByteBuffer.allocate(8192);
+      bytes.flip();                     // empty to start
+    }
+    decoder = Charset.defaultCharset().newDecoder();
+    decoder.onMalformedInput(CodingErrorAction.REPLACE);
+    decoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+    buffer = new char[65536];
+  }
+  //-----------------------------------------
+  // A reader of the lines of text, which has read all of
+  // its file, from offset start on.  The readers share
+  // the chars, so each may be used by its own thread.
+  //
+  public S3SourceReader(S3SourceReader text, int start)
+  {
+    buffer = text.buffer;
+    count = text.count;
+    endOfInput = true;
+    lineStart = lineEnd = next = start;
+  }
+  //-----------------------------------------
+  // Decode the rest of the file into the buffer.  Lines
+  // are still read from where they were.
+  //
+  public void readAll()
+  {
+    try
+    {
+      // room for all of it, so it is decoded in place
+      long size = endOfInput ? 0 : (long)(channel.size() * 
+                       (double)decoder.maxCharsPerByte()) + 1;
+      if (size > buffer.length && size < Integer.MAX_VALUE)
+        buffer = Arrays.copyOf(buffer, (int)size);
+      while (!endOfInput)
+        fill();
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(
+                 "Error reading source: " + e.getMessage());
+    }
+  }
+  //-----------------------------------------
+  // Move to the next line.  Return false at end of file.
+  //
+  public boolean nextLine()
+  {
+    try
+    {
+      lineStart = next;
+      int i = lineStart;
+      while (true)
+      {
+        while (i < count && buffer[i] != '\n' && 
+                                        buffer[i] != '\r')
+          i++;
+        if (i == count || 
+            (buffer[i] == '\r' && i + 1 == count))
+        {
+          if (!endOfInput)     // line may go on
+          {
+            i -= fill();
+            continue;
+          }
+          if (i == count && lineStart == count)
+            return false;
+        }
+        lineEnd = i;
+        next = i;
+        if (i < count)                  // skip line end
+        {
+          next++;
+          if (buffer[i] == '\r' && next < count && 
+                                      buffer[next] == '\n')
+            next++;
+        }
+        return true;
+      }
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(
+                 "Error reading source: " + e.getMessage());
+    }
+  }
+  //-----------------------------------------
+  // Char at column of the current line, or '\n' past its
+  // end.
+  //
+  public char charAt(int column)
+  {
+    int i = lineStart + column;
+    return i < lineEnd ? buffer[i] : '\n';
+  }
+  //-----------------------------------------
+  // The current line, after prefix.
+  //
+  public String getLine(String prefix)
+  {
+    return new StringBuilder(prefix.length() + 
+        lineEnd - lineStart).append(prefix).append(
+        buffer, lineStart, lineEnd - lineStart).toString();
+  }
+  //-----------------------------------------
+  // The buffer holding the current line, and where 
+  // column of the line is in it.  Valid until nextLine.
+  //
+  public char[] getChars()
+  {
+    return buffer;
+  }
+  //-----------------------------------------
+  public int offset(int column)
+  {
+    return lineStart + column;
+  }
+  //-----------------------------------------
+  // Number of chars decoded into the buffer.
+  //
+  public int getCount()
+  {
+    return count;
+  }
+  //-----------------------------------------
+  // Move the current line to the start of buffer, then
+  // decode more of the file after it.  Return how far 
+  // the line moved.
+  //
+  private int fill() throws IOException
+  {
+    int shift = lineStart;
+    System.arraycopy(buffer, lineStart, buffer, 0, 
+                                       count - lineStart);
+    count -= shift;
+    next -= shift;
+    lineStart = 0;
+    if (count == buffer.length)   // line fills buffer
+      buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+
+    CharBuffer chars = CharBuffer.wrap(buffer, count, 
+                                   buffer.length - count);
+    while (chars.position() == count && !endOfInput)
+    {
+      boolean last = mapped;
+      if (!mapped)
+      {
+        bytes.compact();
+        last = channel.read(bytes) < 0;
+        bytes.flip();
+      }
+      CoderResult result = 
+                         decoder.decode(bytes, chars, last);
+      if (last && result.isUnderflow())
+      {
+        decoder.flush(chars);
+        endOfInput = true;
+        channel.close();
+      }
+    }
+    count = chars.position();
+    return shift;
+  }
+}                               // end of S3SourceReader
+//======================================================
+// Traces tokens (level TOKENS), or tokens and the 
+// grammar rules entered (level PARSE), either into the
+// output file as comments or to a binary trace file that
+//   java S3Trace <trace file>
+// prints.  When the level is OFF a trace call is just a
+// compare.
+//
+class S3Trace
+{
+  public static final int OFF = 0;
+  public static final int TOKENS = 1;
+  public static final int PARSE = 2;
+  private static final String[] LEVELS = 
+                               {"off", "tokens", "parse"};
+
+  // record types in a binary trace file
+  private static final int TOKEN = 'T';
+  private static final int RULE = 'R';
+
+  private final int level;
+  private S3CodeGen cg;         // text trace goes here
+  private DataOutputStream out; // or here if not null
+  //-----------------------------------------
+  public S3Trace(int level, S3CodeGen cg, String fileName)
+                                        throws IOException
+  {
+    this.level = level;
+    this.cg = cg;
+    if (fileName != null && level > OFF)
+      out = new DataOutputStream(new BufferedOutputStream(
+                         new FileOutputStream(fileName)));
+  }
+  //-----------------------------------------
+  // Level named by name, which is off, tokens or parse.
+  //
+  public static int getLevel(String name)
+  {
+    for (int i = 0; i < LEVELS.length; i++)
+      if (LEVELS[i].equals(name))
+        return i;
+    throw new IllegalArgumentException(
+                          "Unknown trace level " + name);
+  }
+  //-----------------------------------------
+  public void token(Token t)
+  {
+    if (level < TOKENS)
+      return;
+    if (out == null)
+      cg.emitComment(formatToken(t.kind, t.beginLine, 
+         t.beginColumn, t.endLine, t.endColumn, t.image));
+    else
+      try
+      {
+        out.writeByte(TOKEN);
+        out.writeInt(t.kind);
+        out.writeInt(t.beginLine);
+        out.writeInt(t.beginColumn);
+        out.writeInt(t.endLine);
+        out.writeInt(t.endColumn);
+        out.writeUTF(t.image);
+      }
+      catch (IOException e)
+      {
+        throw new RuntimeException(
+                 "Error writing trace: " + e.getMessage());
+      }
+  }
+  //-----------------------------------------
+  // Rule entered, with t the current token.
+  //
+  public void rule(String name, Token t)
+  {
+    if (level < PARSE)
+      return;
+    if (out == null)
+      cg.emitComment(
+             formatRule(name, t.beginLine, t.beginColumn));
+    else
+      try
+      {
+        out.writeByte(RULE);
+        out.writeUTF(name);
+        out.writeInt(t.beginLine);
+        out.writeInt(t.beginColumn);
+      }
+      catch (IOException e)
+      {
+        throw new RuntimeException(
+                 "Error writing trace: " + e.getMessage());
+      }
+  }
+  //-----------------------------------------
+  public void close() throws IOException
+  {
+    if (out != null)
+      out.close();
+  }
+  //-----------------------------------------
+  private static String formatToken(int kind, int bL, 
+                     int bC, int eL, int eC, String image)
+  {
+    return String.format(
+        "; kd=%3d bL=%3d bC=%3d eL=%3d eC=%3d im=%s",
+        kind, bL, bC, eL, eC, image);
+  }
+  //-----------------------------------------
+  private static String formatRule(String name, int bL, 
+                                                   int bC)
+  {
+    return String.format("; rule bL=%3d bC=%3d %s",
+                                           bL, bC, name);
+  }
+  //-----------------------------------------
+  // Print a binary trace file as the text trace.
+  //
+  public static void main(String[] args) throws 
+                                             IOException
+  {
+    if (args.length != 1)
+    {
+      System.err.println("Wrong number cmd line args");  
+      System.exit(1);
+    }
+
+    DataInputStream in = new DataInputStream(
+                      new BufferedInputStream(
+                          new FileInputStream(args[0])));
+    int type;
+    while ((type = in.read()) >= 0)
+      if (type == TOKEN)
+      {
+        int kind = in.readInt();
+        int bL = in.readInt();
+        int bC = in.readInt();
+        int eL = in.readInt();
+        int eC = in.readInt();
+        System.out.println(
+               formatToken(kind, bL, bC, eL, eC, in.readUTF()));
+      }
+      else if (type == RULE)
+      {
+        String name = in.readUTF();
+        int bL = in.readInt();
+        System.out.println(formatRule(name, bL, in.readInt()));
+      }
+      else
+      {
+        System.err.println("Bad trace file " + args[0]);
+        System.exit(1);
+      }
+    in.close();
+  }
+}                                     // end of S3Trace
+//======================================================
+// Micro-benchmarks of the compiler's hot paths, run as
+//   java S3Bench <benchmark>
+// where benchmark is one of
+//   symbols  ns per S3SymTab lookup, 10 to 1,000,000
+//            symbols
+//   tokens   bytes allocated per token by S3TokenMgr
+//   output   lines/s written by S3Output and by printf
+//   parallel s to compile 1,000,000 statements with and
+//            without -parallel
+// Each figure is the best of RUNS runs, so JIT warm-up 
+// and GC pauses drop out.
+//
+class S3Bench
+{
+  private static final int RUNS = 5;
+  private static long sink;    // keeps results live
+  //-----------------------------------------
+  public static void main(String[] args) throws 
+                                             IOException
+  {
+    if (args.length != 1)
+    {
+      System.err.println("Wrong number cmd line args");  
+      System.exit(1);
+    }
+
+    if (args[0].equals("symbols"))
+      symbols();
+    else if (args[0].equals("tokens"))
+    {
+      tokens("punctuation", "((( ; ))) + - * / = { }");
+      tokens("expressions", "x1 = (a + 17) * b2 - tmp / 3;");
+    }
+    else if (args[0].equals("output"))
+      output();
+    else if (args[0].equals("parallel"))
+      parallel();
+    else
+    {
+      System.err.println("Unknown benchmark " + args[0]);
+      System.exit(1);
+    }
+  }
+  //-----------------------------------------
+  // Time enter() of names already in the table, for 
+  // tables of 10 to 1,000,000 symbols.  With a hash index
+  // the time per lookup stays flat apart from cache 
+  // effects; with a linear scan it grows with the size.
+  //
+  private static void symbols()
+  {
+    int lookups = 2000000;
+    for (int n = 10; n <= 1000000; n *= 10)
+    {
+      String[] names = new String[n];
+      for (int i = 0; i < n; i++)
+        names[i] = "v" + i;
+
+      long best = Long.MAX_VALUE;
+      for (int run = 0; run < RUNS; run++)
+      {
+        S3SymTab st = new S3SymTab();
+        for (String name : names)
+          st.enter(name);
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++)
+          sink += st.enter(names[i % n]);
+        best = Math.min(best, System.nanoTime() - start);
+      }
+      System.out.printf("%9d symbols: %6.1f ns/lookup%n", 
+                                  n, (double)best / lookups);
+    }
+  }
+  //-----------------------------------------
+  // Bytes the thread allocates per token while S3TokenMgr
+  // reads 500,000 tokens of source made of copies of line.
+  // There is no source echo, so this is the token path 
+  // alone.
+  //
+  private static void tokens(String name, String line) 
+                                        throws IOException
+  {
+    File file = File.createTempFile("S3Bench", ".s");
+    file.deleteOnExit();
+    writeLines(file, line, 1);
+    long perLine = countTokens(tokenMgr(file));
+    writeLines(file, line, (int)(500000 / perLine));
+
+    com.sun.management.ThreadMXBean bean = 
+             (com.sun.management.ThreadMXBean)
+        java.lang.management.ManagementFactory.getThreadMXBean();
+    long best = Long.MAX_VALUE;
+    long count = 0;
+    for (int run = 0; run < RUNS; run++)
+    {
+      S3TokenMgr tm = tokenMgr(file);
+      long start = bean.getCurrentThreadAllocatedBytes();
+      count = countTokens(tm);
+      best = Math.min(best, 
+                  bean.getCurrentThreadAllocatedBytes() - start);
+    }
+    System.out.printf("%-12s %7d tokens: %5.1f bytes/token%n", 
+                          name, count, (double)best / count);
+  }
+  //-----------------------------------------
+  private static void writeLines(File file, String line, 
+                            int count) throws IOException
+  {
+    try (PrintWriter out = new PrintWriter(file))
+    {
+      for (int i = 0; i < count; i++)
+        out.println(line);
+    }
+  }
+  //-----------------------------------------
+  private static S3TokenMgr tokenMgr(File file) 
+                                        throws IOException
+  {
+    return new S3TokenMgr(new S3SourceReader(file), 
+                 new S3SymTab(), 
+                 new S3CodeGen(null, null, null, false), 
+                 new S3Trace(S3Trace.OFF, null, null), 
+                                           S3Output.NONE);
+  }
+  //-----------------------------------------
+  // Read tokens into one slot, as the parser's ring 
+  // does, up to EOF.  Return how many were read.
+  //
+  private static long countTokens(S3TokenMgr tm)
+  {
+    Token token = new Token();
+    long count = 0;
+    for (tm.getNextToken(token); token.kind != S3Constants.EOF;
+                                    tm.getNextToken(token))
+      count++;
+    return count;
+  }
+  //-----------------------------------------
+  // Lines/s for 2,000,000 lines, three instructions to 
+  // each dw, written by S3Output and by the printf 
+  // formats it replaced.  The two files must match.
+  //
+  private static void output() throws IOException
+  {
+    int lines = 2000000;
+    File fast = File.createTempFile("S3Bench", ".a");
+    File printf = File.createTempFile("S3Bench", ".a");
+    fast.deleteOnExit();
+    printf.deleteOnExit();
+
+    long bestFast = Long.MAX_VALUE;
+    long bestPrintf = Long.MAX_VALUE;
+    for (int run = 0; run < RUNS; run++)
+    {
+      long start = System.nanoTime();
+      S3Output out = new S3Output(fast.getPath(), null);
+      for (int i = 0; i < lines / 4; i++)
+      {
+        out.instruction("pc", "x" + (i & 255));
+        out.instruction("pwc", "" + i);
+        out.instruction("stav", null);
+        out.dw("x" + (i & 255), "" + i);
+      }
+      out.close();
+      bestFast = Math.min(bestFast, System.nanoTime() - start);
+
+      start = System.nanoTime();
+      PrintWriter pw = new PrintWriter(new BufferedWriter(
+                                   new FileWriter(printf)));
+      for (int i = 0; i < lines / 4; i++)
+      {
+        pw.printf("          %-4s      %s%n", "pc", 
+                                            "x" + (i & 255));
+        pw.printf("          %-4s      %s%n", "pwc", "" + i);
+        pw.printf("          %-4s%n", "stav");
+        pw.printf("%-9s dw        %s%n", "x" + (i & 255) + ":",
+                                                       "" + i);
+      }
+      pw.close();
+      bestPrintf = Math.min(bestPrintf, 
+                                  System.nanoTime() - start);
+    }
+
+    if (Files.mismatch(fast.toPath(), printf.toPath()) >= 0)
+    {
+      System.err.println("S3Output and printf differ");
+      System.exit(1);
+    }
+    System.out.printf("S3Output %6.2fM lines/s%n", 
+                                 lines * 1e3 / bestFast);
+    System.out.printf("printf   %6.2fM lines/s%n", 
+                               lines * 1e3 / bestPrintf);
+  }
+  //-----------------------------------------
+  // Seconds to compile 1,000,000 top-level statements, 
+  // with and without -parallel, on the cores the JVM 
+  // sees (with one, -parallel compiles sequentially).  
+  // Every variable is read first, so the partial 
+  // evaluator folds little away.  The two .a files must
+  // match.
+  //
+  private static void parallel() throws IOException
+  {
+    File dir = Files.createTempDirectory("S3Bench").toFile();
+    dir.deleteOnExit();
+    String[] names = {"sequential", "parallel"};
+    for (String name : names)
+    {
+      File source = new File(dir, name + ".s");
+      source.deleteOnExit();
+      new File(dir, name + ".a").deleteOnExit();
+      try (PrintWriter out = new PrintWriter(
+              new BufferedWriter(new FileWriter(source))))
+      {
+        for (int v = 0; v < 1000; v++)
+          out.println("readint(v" + v + ");");
+        for (int i = 0; i < 1000000; i++)
+          if (i % 10 == 0)
+            out.println("println(v" + i % 1000 + ");");
+          else
+            out.println("v" + i % 1000 + " = v" + 
+                i * 7 % 1000 + " + " + i % 100 + " * (v" + 
+                                   i * 13 % 1000 + " - 5);");
+      }
+    }
+
+    long[] best = {Long.MAX_VALUE, Long.MAX_VALUE};
+    for (int run = 0; run < RUNS; run++)
+      for (int p = 0; p < 2; p++)
+      {
+        S3Options options = new S3Options();
+        options.dir = dir;
+        options.traceLevel = S3Trace.OFF;
+        options.listing = S3Output.NONE;
+        options.parallel = p == 1;
+        long start = System.nanoTime();
+        String error = S3.compile(names[p], 
+                                 options.peephole, options);
+        best[p] = Math.min(best[p], System.nanoTime() - start);
+        if (error != null)
+        {
+          System.err.println(error);
+          System.exit(1);
+        }
+      }
+
+    if (Files.mismatch(new File(dir, "sequential.a").toPath(),
+                 new File(dir, "parallel.a").toPath()) >= 0)
+    {
+      System.err.println("-parallel output differs");
+      System.exit(1);
+    }
+    System.out.printf("%d cores%n", 
+                  Runtime.getRuntime().availableProcessors());
+    System.out.printf("sequential %6.2f s%n", best[0] / 1e9);
+    System.out.printf("parallel   %6.2f s (%.2fx)%n", 
+                     best[1] / 1e9, (double)best[0] / best[1]);
+  }
+}                                      // end of S3Bench
+//======================================================
+class S3TokenMgr implements S3Constants
+{
+  private S3SourceReader inFile;          
+  private S3SymTab st;        // interns identifiers
+  private S3CodeGen cg;
+  private S3Trace trace;
+  private int listing;         // source echo, see S3Output
+  private char currentChar;
+  private int currentColumnNumber;
+  private int currentLineNumber;
+  private StringBuffer buffer; // token image built here
+  private boolean tF  = false;// token image built here
+
+  // images of single-char tokens, so none are built
+  private static final String[] ONE_CHAR = new String[128];
+  static
+  {
+    for (char c = 0; c < 128; c++)
+      ONE_CHAR[c] = Character.toString(c);
+  }
+
+  // Keywords are recognized while an identifier is 
+  // scanned by walking a trie built from KEYWORDS, so 
+  // the cost does not grow with the number of keywords.
+  // TRIE[state * 128 + c] is the state after ASCII char c
+  // (-1 if no keyword has that prefix), and 
+  // KEYWORD_AT[state] is the keyword ending there or -1.
+  private static final String[] KEYWORDS = 
+                                   {"print", "println", "readint"};
+  private static final int[] KEYWORD_KINDS = 
+                                   {PRINT, PRINTLN, READINT};
+  private static final int[] TRIE;
+  private static final int[] KEYWORD_AT;
+  static
+  {
+    int states = 1;
+    for (String k : KEYWORDS)
+      states += k.length();
+    TRIE = new int[states * 128];
+    Arrays.fill(TRIE, -1);
+    KEYWORD_AT = new int[states];
+    Arrays.fill(KEYWORD_AT, -1);
+
+    int used = 1;
+    for (int k = 0; k < KEYWORDS.length; k++)
+    {
+      int state = 0;
+      for (int i = 0; i < KEYWORDS[k].length(); i++)
+      {
+        int next = state * 128 + KEYWORDS[k].charAt(i);
+        if (TRIE[next] < 0)
+          TRIE[next] = used++;
+        state = TRIE[next];
+      }
+      KEYWORD_AT[state] = k;
+    }
+  }
+  //-----------------------------------------
+  public S3TokenMgr(S3SourceReader inFile, S3SymTab st,
+                    S3CodeGen cg, S3Trace trace, 
+                    int listing)
+  {
+    this.inFile = inFile;
+    this.st = st;
+    this.cg = cg;
+    this.trace = trace;
+    this.listing = listing;
+    currentChar = '\n';        //  '\n' triggers read
+    currentLineNumber = 0;
+    buffer = new StringBuffer();
+  }
+  //-----------------------------------------
+  // The reader starts part way into the source, at line.
+  //
+  public void startAt(int line)
+  {
+    currentLineNumber = line - 1;
+  }
+  //-----------------------------------------
+  // Read the next token into token, a slot reused by
+  // the parser.
+  //
+  public void getNextToken(Token token)
+  {
+    // skip whitespace
+    while (Character.isWhitespace(currentChar))
+      getNextChar();
+
+    // clear token to be returned to parser
+    token.kind = 0;
+    token.image = null;
+    token.next = null;
+    token.endLine = 0;
+    token.endColumn = 0;
+
+    // save start-of-token position
+    token.beginLine = currentLineNumber;
+    token.beginColumn = currentColumnNumber;
+
+    // check for EOF
+    if (currentChar == EOF)
+    {
+      token.image = "<EOF>";
+      token.endLine = currentLineNumber;
+      token.endColumn = currentColumnNumber;
+      token.kind = EOF;
+    }
+    else 
+    if (currentChar == '"')
+    {
+      tF=true;
+      buffer.setLength(0);  // clear buffer
+      buffer.append(currentChar); 
+      getNextChar();
+      while(currentChar != '"'){
+        buffer.append(currentChar); 
+        token.endLine = currentLineNumber;
+        token.endColumn = currentColumnNumber;
+        getNextChar();
+      }
+      buffer.append(currentChar); 
+      getNextChar();
+
+        // save buffer as String in token.image
+        token.image = buffer.toString();
+        token.kind = STRING;
+        tF=false;
+    }
+
+    else  // check for unsigned int
+    if (Character.isDigit(currentChar)) 
+    {
+      do  // scan number
+      {
+        token.endLine = currentLineNumber;
+        token.endColumn = currentColumnNumber;
+        getNextChar();
+      } while (Character.isDigit(currentChar));
+      // interned like an identifier, so a number seen 
+      // before needs no new String
+      token.image = st.intern(inFile.getChars(), 
+          inFile.offset(token.beginColumn - 1), 
+          token.endColumn - token.beginColumn + 1);
+      token.kind = UNSIGNED;
+    }
+
+    else  // check for identifier
+    if (Character.isLetter(currentChar)) 
+    { 
+      int state = 0;             // trie state
+      do  // scan identifier
+      {
+        if (state >= 0)
+          state = currentChar < 128 ? 
+                  TRIE[state * 128 + currentChar] : -1;
+        token.endLine = currentLineNumber;
+        token.endColumn = currentColumnNumber;
+        getNextChar();
+      } while (Character.isLetterOrDigit(currentChar));
+
+      // check if keyword
+      int keyword = state >= 0 ? KEYWORD_AT[state] : -1;
+      if (keyword >= 0)
+      {
+        token.image = KEYWORDS[keyword];
+        token.kind = KEYWORD_KINDS[keyword];
+      }
+      else  // not a keyword so kind is ID
+      {
+        token.image = st.intern(inFile.getChars(), 
+            inFile.offset(token.beginColumn - 1), 
+            token.endColumn - token.beginColumn + 1);
+        token.kind = ID;
+      }
+    }
+
+    else  // process single-character token
+    {  
+      switch(currentChar)
+      {
+        case '=':
+          token.kind = ASSIGN;
+          break;                               
+        case ';':
+          token.kind = SEMICOLON;
+          break;                               
+        case '(':
+          token.kind = LEFTPAREN;
+          break;                               
+        case ')':
+          token.kind = RIGHTPAREN;
+          break;                               
+        case '+':
+          token.kind = PLUS;
+          break;                               
+        case '-':
+          token.kind = MINUS;
+          break;                               
+        case '*':
+          token.kind = TIMES;
+          break;   
+        case '/':
+          token.kind = DIV;
+          break;   
+        case '{':
+          token.kind = LEFTCURLYBRACKET;
+          break; 
+        case '}':
+          token.kind = RIGHTCURLYBRACKET;
+          break; 		  
+        default:
+          token.kind = ERROR;
+          break;                               
+      }
+
+      // save currentChar as String in token.image
+      token.image = currentChar < 128 ? 
+            ONE_CHAR[currentChar] : 
+            Character.toString(currentChar);
+
+      // save end-of-token position
+      token.endLine = currentLineNumber;
+      token.endColumn = currentColumnNumber;
+
+      getNextChar();  // read beyond end of token
+    }
+
+    trace.token(token);
+  }     
+  //-----------------------------------------
+  private void getNextChar()
+  {
+    if (currentChar == EOF)
+      return;
+
+    if (currentChar == '\n')        // need next line?
+    {
+      if (inFile.nextLine())        // any lines left?
+      {
+        currentColumnNumber = 0;
+        currentLineNumber++;   
+
+        // output source line as comment, or just mark
+        // where its code starts for the line map
+        if (listing == S3Output.FULL)
+          cg.emitComment(inFile.getLine("; "));
+        else if (listing == S3Output.MAP)
+          cg.emitLineMark(currentLineNumber);
+      }                                
+      else  // at end of file
+      {
+         currentChar = EOF;
+         return;
+      }
+    }
+
+    // get next char from current line
+    currentChar = inFile.charAt(currentColumnNumber++);
+
+    // in S3, test for single-line comment goes here
+	
+	if(currentChar == '/' && inFile.charAt(currentColumnNumber) == '/' && tF != true){
+		currentChar = '\n';
+	}
+		
+  }
+}                                   // end of S3TokenMgr
+//======================================================
+class S3Parser implements S3Constants
+{
+  private S3SymTab st;
+  private S3TokenMgr tm;
+  private S3CodeGen cg;
+  private S3Trace trace;
+  private Token currentToken;
+  private Token previousToken; 
+
+  // Tokens are read into a ring of reusable slots: 
+  // token number pos (currentToken) is in 
+  // ring[pos & RING_MASK], and tokens up to number 
+  // read - 1 have been read.  A token is reused when
+  // RING_SIZE - 1 more have been read, so the parser
+  // may hold on to one while it consumes a few more.
+  private static final int RING_SIZE = 8;
+  private static final int RING_MASK = RING_SIZE - 1;
+  private Token[] ring;
+  private int pos;
+  private int read;
+
+  // expression parsing, see expr
+  private int[] ops = new int[16];  // operator stack
+  private int opTop;                // number on ops
+  private int parens;               // "(" on ops
+  private static final int NEG = -1;   // unary "-" on ops
+
+  private int depth;          // of { } being parsed
+  private boolean spliced;    // stopped, see topLevelStatement
+  //-----------------------------------------
+  public S3Parser(S3SymTab st, S3TokenMgr tm, 
+                  S3CodeGen cg, S3Trace trace)
+  {
+    this.trace = trace;
+    this.st = st;
+    this.tm = tm;
+    this.cg = cg;   
+    ring = new Token[RING_SIZE];
+    for (int i = 0; i < RING_SIZE; i++)
+      ring[i] = new Token();
+
+    // prime currentToken with first token
+    tm.getNextToken(ring[0]);
+    currentToken = ring[0];
+    pos = 0;
+    read = 1;
+    previousToken = null;
+  }
+  //-----------------------------------------
+  // Construct and return an exception that contains
+  // a message consisting of the image of the current
+  // token, its location, and the expected tokens.
+  //
+  private RuntimeException genEx(String errorMessage)
+  {
+    return new RuntimeException("Encountered \"" + 
+      currentToken.image + "\" on line " + 
+      currentToken.beginLine + ", column " + 
+      currentToken.beginColumn + "." +
+      System.getProperty("line.separator") + 
+      errorMessage);
+  }
+  //-----------------------------------------
+  // Advance currentToken to next token.
+  //
+  private void advance()
+  {
+    previousToken = currentToken; 
+    pos++;
+
+    // If next token has not been read yet, get it from
+    // token mgr into the next slot.
+    if (pos == read)
+      tm.getNextToken(ring[read++ & RING_MASK]);
+    currentToken = ring[pos & RING_MASK];
+  }
+  //-----------------------------------------
+  // getToken(i) returns ith token without advancing
+  // in token stream.  getToken(0) returns 
+  // previousToken.  getToken(1) returns currentToken.
+  // getToken(2) returns next token, and so on, up to
+  // getToken(RING_SIZE - 2).
+  //
+  private Token getToken(int i)
+  {
+    if (i <= 0)
+      return previousToken;
+    if (i > RING_SIZE - 2)
+      throw new RuntimeException(
+                    "Lookahead of " + i + " tokens too far");
+
+    // read tokens up to the ith one
+    while (read - pos < i)
+      tm.getNextToken(ring[read++ & RING_MASK]);
+    return ring[(pos + i - 1) & RING_MASK];
+  }
+  //-----------------------------------------
+  // If the kind of the current token matches the
+  // expected kind, then consume advances to the next
+  // token. Otherwise, it throws an exception.
+  //
+  private void consume(int expected)
+  {
+    if (currentToken.kind == expected)
+      advance();
+    else
+      throw genEx("Expecting " + tokenImage[expected]);
+  }
+  //-----------------------------------------
+  public void parse()
+  {
+    program();   // program is start symbol for grammar
+  }
+  //-----------------------------------------
+  private void program()
+  {
+    trace.rule("program", currentToken);
+    statementList();
+    cg.endCode();
+    if (!spliced && currentToken.kind != EOF)  //garbage at end?
+      throw genEx("Expecting <EOF>");
+  }
+  //-----------------------------------------
+  private void statementList()
+  {
+    // one statement per pass, so the stack does not grow
+    // with the number of statements
+    while (true)
+    {
+      // where a top-level statement begins a line, a part
+      // of a parallel compile may end
+      if (depth == 0 && currentToken.kind != EOF && 
+          read == pos + 1 && (previousToken == null || 
+            previousToken.endLine < currentToken.beginLine) &&
+          cg.topLevelStatement(currentToken.beginLine))
+      {
+        spliced = true;
+        return;
+      }
+      trace.rule("statementList", currentToken);
+      switch(currentToken.kind)
+      {
+        case ID:
+        case PRINTLN:
+        case PRINT:
+        case SEMICOLON:
+        case LEFTCURLYBRACKET:
+        case READINT:
+          statement();
+          break;
+        case EOF:
+        case RIGHTCURLYBRACKET:
+          return;
+        default:
+          throw genEx("Expecting statement or <EOF>");
+      }
+    }
+  }
+  //-----------------------------------------
+  private void statement()
+  {
+    trace.rule("statement", currentToken);
+    switch(currentToken.kind)
+    {
+      case ID: 
+        assignmentStatement(); 
+        break;
+      case PRINTLN:    
+        printlnStatement(); 
+        break;
+	  case PRINT:    
+        printStatement(); 
+        break;
+	  case SEMICOLON:    
+        nullStatement(); 
+        break;
+	case LEFTCURLYBRACKET:    
+        compoundStatement(); 
+        break;
+  case READINT:    
+        readIntStatement(); 
+        break;
+      default:         
+        throw genEx("Expecting statement");
+    }
+    cg.endStatement();    // optimize and write its code
+  }
+  //-----------------------------------------
+  private void assignmentStatement()
+  {
+    trace.rule("assignmentStatement", currentToken);
+    Token t;
+    t = currentToken;
+    consume(ID);
+    st.enter(t.image);
+    cg.emitInstruction("pc", t.image);
+    consume(ASSIGN);
+    assignmentTail();
+    cg.emitInstruction("stav");
+  }
+  private void assignmentTail()
+  {
+    trace.rule("assignmentTail", currentToken);
+    if(getToken(1).kind == ID && getToken(2).kind == ASSIGN){
+      Token t;
+      t = currentToken;
+      consume(ID);
+      st.enter(t.image);
+      cg.emitInstruction("pc", t.image);
+      consume(ASSIGN);
+      assignmentTail();
+      cg.emitInstruction("dupe");
+      cg.emitInstruction("rot");
+      cg.emitInstruction("stav");
+    }else{
+      expr();
+      consume(SEMICOLON);
+    }
+  }
+  //-----------------------------------------
+  private void printlnStatement()
+  {
+    trace.rule("printlnStatement", currentToken);
+    consume(PRINTLN);
+    consume(LEFTPAREN);
+    if(currentToken.kind == RIGHTPAREN){
+
+    }else{
+      printArgs(); 
+    }
+    cg.emitInstruction("pc", "'\\n'");
+    cg.emitInstruction("aout");
+    consume(RIGHTPAREN);
+    consume(SEMICOLON);
+  }
+    //-----------------------------------------
+    private void printArgs(){
+      trace.rule("printArgs", currentToken);
+      Token t;
+      String label;
+      if(currentToken.kind == STRING){
+       
+        t = currentToken; // save string token
+        consume(STRING);
+        label = cg.getLabel(); // get label for string
+        cg.emitInstruction ("pc", label);
+        cg.emitInstruction("sout");
+        cg.emitdw("^" + label, t.image);
+      }else{
+        expr();
+        cg.emitInstruction("dout");
+      }
+    }
+    //-----------------------------------------
+    private void printStatement()
+  {
+    trace.rule("printStatement", currentToken);
+    consume(PRINT);
+    consume(LEFTPAREN);
+    printArgs();
+    consume(RIGHTPAREN);
+    consume(SEMICOLON);
+  }
+   //-----------------------------------------
+  private void nullStatement()
+  {
+    trace.rule("nullStatement", currentToken);
+    consume(SEMICOLON);
+  }
+   //-----------------------------------------
+  private void compoundStatement()
+  {
+    trace.rule("compoundStatement", currentToken);
+    consume(LEFTCURLYBRACKET);
+    depth++;
+	  statementList();
+    depth--;
+    consume(RIGHTCURLYBRACKET);
+  }
+  //-----------------------------------------
+  private void readIntStatement()
+  {
+    trace.rule("readIntStatement", currentToken);
+    consume(READINT);
+    consume(LEFTPAREN);
+
+      Token t;
+      t = currentToken;
+      consume(ID);
+      st.enter(t.image);
+      cg.emitInstruction("pc", t.image);
+      cg.emitInstruction("din");
+      cg.emitInstruction("stav");
+
+    consume(RIGHTPAREN);
+    consume(SEMICOLON);
+  }
+  //-----------------------------------------
+  // Expressions are parsed by precedence climbing, with
+  // pending operators and "(" kept on an explicit stack
+  // instead of the Java stack, so neither long operator
+  // chains nor deep nesting can overflow it.  Code is 
+  // generated in the same order as recursive descent on
+  //   expr   -> term (("+" | "-") term)*
+  //   term   -> factor (("*" | "/") factor)*
+  //   factor -> UNSIGNED | ID | "(" expr ")" 
+  //           | "+" factor | "-" factor
+  //
+  private void expr()
+  {
+    trace.rule("expr", currentToken);
+    opTop = 0;
+    parens = 0;
+    while (true)
+    {
+      factor();      // up to and including next operand
+
+      // operators, and ")"s, after the operand
+      while (true)
+      {
+        int kind = currentToken.kind;
+        if (kind == PLUS || kind == MINUS || 
+            kind == TIMES || kind == DIV)
+        {
+          reduce(precedence(kind));
+          push(kind);
+          consume(kind);
+          break;                 // on to next operand
+        }
+        else if (kind == RIGHTPAREN && parens > 0)
+        {
+          reduce(0);             // back to the "("
+          opTop--;
+          parens--;
+          consume(RIGHTPAREN);
+          negate();       // "-" before the "("
+        }
+        else if (kind == RIGHTPAREN || kind == SEMICOLON)
+        {
+          if (parens > 0)
+            throw genEx("Expecting " + tokenImage[RIGHTPAREN]);
+          reduce(0);
+          return;
+        }
+        else
+          throw genEx("Expecting op, \")\", \"/\", or \";\"");
+      }
+    }
+  }
+  //-----------------------------------------
+  // Generate code for the operators on top of ops whose
+  // precedence is at least min, stopping at a "(".
+  //
+  private void reduce(int min)
+  {
+    while (opTop > 0 && ops[opTop - 1] != LEFTPAREN &&
+           ops[opTop - 1] != NEG &&
+                           precedence(ops[opTop - 1]) >= min)
+      switch(ops[--opTop])
+      {
+        case PLUS:
+          cg.emitInstruction("add");
+          break;
+        case MINUS:
+          cg.emitInstruction("sub");
+          break;
+        case TIMES:
+          cg.emitInstruction("mult");
+          break;
+        case DIV:
+          cg.emitInstruction("div");
+          break;
+      }
+  }
+  //-----------------------------------------
+  private int precedence(int kind)
+  {
+    return kind == TIMES || kind == DIV ? 2 : 1;
+  }
+  //-----------------------------------------
+  private void push(int kind)
+  {
+    if (opTop == ops.length)
+      ops = Arrays.copyOf(ops, 2 * opTop);
+    ops[opTop++] = kind;
+  }
+  //-----------------------------------------
+  // Generate a neg for each "-" stacked just before the
+  // factor that has now been parsed.  A constant or a 
+  // double negation is folded away by the peephole 
+  // optimizer.
+  //
+  private void negate()
+  {
+    while (opTop > 0 && ops[opTop - 1] == NEG)
+    {
+      opTop--;
+      cg.emitInstruction("neg");
+    }
+  }
+  //-----------------------------------------
+  // Parse a factor up to its first operand, stacking any
+  // "(" and "-" before it.
+  //
+  private void factor()
+  {  
+    Token t;
+
+    while (true)
+    {
+      trace.rule("factor", currentToken);
+      switch(currentToken.kind)
+      {
+        case UNSIGNED:
+          t = currentToken;
+          consume(UNSIGNED);
+          cg.emitInstruction("pwc", t.image);
+          negate();
+          return;
+        case ID:
+          t = currentToken;
+          consume(ID);
+          st.enter(t.image);
+          cg.emitInstruction("p", t.image);
+          negate();
+          return;
+        case LEFTPAREN:
+          consume(LEFTPAREN);
+          push(LEFTPAREN);
+          parens++;
+          break;
+        case PLUS:
+          consume(PLUS);
+          break;
+        case MINUS:
+          consume(MINUS);
+          if (currentToken.kind == UNSIGNED)
+          {
+            t = currentToken;
+            consume(UNSIGNED);
+            cg.emitInstruction("pwc", "-" + t.image);
+            negate();
+            return;
+          }
+          push(NEG);
+          break;
+        default:
+          throw genEx("Expecting factor");
+      }
+    }
+  }
+}                                     // end of S3Parser
+//======================================================
+class S3CodeGen
+{
+  private static final String LINE_MARK = "\0";
+  private S3Output outFile;
+  private S3SymTab st;
+  private int labelNumber=0;
+  private S3Peephole peephole;
+  private boolean evaluate;   // run partial evaluator
+  private ArrayList<S3Statement> program;
+  private ArrayList<String> comments;      // since last
+  private ArrayList<S3Instruction> window; // 1 statement
+  private ArrayList<S3Instruction> strings;  // its dws
+
+  private boolean restarted;  // comments so far are reused
+  private boolean ended;      // program written
+
+  // -parallel: a part of the program, up to the top-level
+  // statement that begins stopLine (0 for the rest)
+  private boolean part;
+  private int stopLine;
+  private boolean stopped;    // there
+  //-----------------------------------------
+  public S3CodeGen(S3Output outFile, S3SymTab st,
+                   S3Peephole peephole, boolean evaluate)
+  {
+    this.outFile = outFile;
+    this.st = st;
+    this.peephole = peephole;
+    this.evaluate = evaluate;
+    program = new ArrayList<S3Statement>();
+    comments = new ArrayList<String>();
+    window = new ArrayList<S3Instruction>();
+    strings = new ArrayList<S3Instruction>();
+  }
+  //-----------------------------------------
+  // Instructions are collected in a window that holds
+  // the code for the current statement.  endStatement 
+  // runs the peephole optimizer over the window and adds
+  // what is left to the program, which endCode writes.
+  //
+  public void emitInstruction(String op)
+  {
+    window.add(new S3Instruction(op, null)); 
+  }
+  //-----------------------------------------
+  public void emitInstruction(String op, String opnd)
+  {           
+    window.add(new S3Instruction(op, opnd)); 
+  }
+  //-----------------------------------------
+  public void emitdw(String label, String value)
+  {           
+    strings.add(new S3Instruction(label, "dw", value));
+  }
+  //-----------------------------------------
+  // Source lines and token traces are written ahead of
+  // the code of the statement that follows them.
+  //
+  public void emitComment(String line)
+  {
+    comments.add(line);
+  }
+  //-----------------------------------------
+  // In map listing mode, a source line is marked in 
+  // place of its echo, so the map can give the line its
+  // code starts on.
+  //
+  public void emitLineMark(int lineNumber)
+  {
+    comments.add(LINE_MARK + lineNumber);
+  }
+  //-----------------------------------------
+  private static void writeComment(S3Output out, 
+                                          String line)
+  {
+    if (line.startsWith(LINE_MARK))
+      out.mark(Integer.parseInt(line.substring(1)));
+    else
+      out.println(line);
+  }
+  //-----------------------------------------
+  public void endStatement()
+  {
+    if (window.isEmpty() && comments.isEmpty())
+      return;              // e.g., end of { } or ;
+
+    peephole.optimize(window);
+    program.add(new S3Statement(comments, window, strings));
+    comments = new ArrayList<String>();
+    window = new ArrayList<S3Instruction>();
+    strings = new ArrayList<S3Instruction>();
+  }
+  //-----------------------------------------
+  // Generate only the part of the program up to the 
+  // top-level statement that begins stopLine (0 for the
+  // rest), which starts after another part if restarted.
+  //
+  public void setPart(int stopLine, boolean restarted)
+  {
+    part = true;
+    this.stopLine = stopLine;
+    this.restarted = restarted;
+  }
+  //-----------------------------------------
+  // Whether the part ended where it was meant to.
+  //
+  public boolean isComplete()
+  {
+    return stopLine == 0 || stopped;
+  }
+  //-----------------------------------------
+  // Add the statements of the next part, and its symbols
+  // in the order it entered them.
+  //
+  public void join(S3CodeGen part)
+  {
+    program.addAll(part.program);
+    labelNumber = part.labelNumber;
+    for (int i = 0; i < part.st.getSize(); i++)
+      st.enter(part.st.getSymbol(i));
+  }
+  //-----------------------------------------
+  // The parser is at a top-level statement that begins 
+  // line.  A part stops there if it is at or past its 
+  // stopLine.  Returns true if the parser should stop.
+  //
+  public boolean topLevelStatement(int line)
+  {
+    if (restarted)      // what came before has these
     {
-      tF=true;
-      buffer.setLength(0);  // clear buffer
-      buffer.append(currentChar); 
-      getNextChar();
-      while(currentChar != '"'){
-        buffer.append(currentChar); 
-        token.endLine = currentLineNumber;
-        token.endColumn = currentColumnNumber;
-        getNextChar();
-      }
-      buffer.append(currentChar); 
-      getNextChar();
-
-        // save buffer as String in token.image
-        token.image = buffer.toString();
-        token.kind = STRING;
-        tF=false;
+      comments.clear();
+      restarted = false;
     }
-
-    else  // check for unsigned int
-    if (Character.isDigit(currentChar)) 
+    if (stopLine > 0 && line >= stopLine)
     {
-      buffer.setLength(0);  // clear buffer
-      do  // build token image in buffer
+      stopped = line == stopLine;
+      return true;
+    }
+    return false;
+  }
+  //-----------------------------------------
+  // Number the strings from label first on, in program
+  // order, as a sequential compile would have.
+  //
+  public void numberStrings(int first)
+  {
+    labelNumber = first;
+    for (S3Statement s : program)
+      if (!s.strings.isEmpty())
       {
-        buffer.append(currentChar); 
-        token.endLine = currentLineNumber;
-        token.endColumn = currentColumnNumber;
-        getNextChar();
-      } while (Character.isDigit(currentChar));
-      // save buffer as String in token.image
-      token.image = buffer.toString();
-      token.kind = UNSIGNED;
+        HashMap<String, String> labels = 
+                                 new HashMap<String, String>();
+        for (int i = 0; i < s.strings.size(); i++)
+        {
+          S3Instruction dw = s.strings.get(i);
+          String label = getLabel();
+          labels.put(dw.label.substring(1), label);   // ^
+          s.strings.set(i, 
+                  new S3Instruction("^" + label, "dw", dw.opnd));
+        }
+        for (int i = 0; i < s.code.size(); i++)
+        {
+          S3Instruction inst = s.code.get(i);
+          if (inst.opnd != null && labels.containsKey(inst.opnd))
+            s.code.set(i, new S3Instruction(inst.op, 
+                                    labels.get(inst.opnd)));
+        }
+      }
+  }
+  //-----------------------------------------
+  // The number of labels given out.
+  //
+  public int getLabelCount()
+  {
+    return labelNumber;
+  }
+  //-----------------------------------------
+  private static void write(S3Output out, 
+                                      S3Instruction inst)
+  {
+    if (inst.label != null)
+      out.dw(inst.label, inst.opnd);
+    else
+      out.instruction(inst.op, inst.opnd);
+  }
+  //-----------------------------------------
+  // Write program[from] up to program[to] to out, with 
+  // the dws of only the strings in used (all if used is 
+  // null).
+  //
+  private void writeStatements(S3Output out, int from, 
+                              int to, HashSet<String> used)
+  {
+    for (S3Statement s : program.subList(from, to))
+    {
+      for (String line : s.comments)
+        writeComment(out, line);
+      for (S3Instruction inst : s.code)
+        write(out, inst);
+      for (S3Instruction inst : s.strings)
+        if (used == null || 
+                used.contains(inst.label.substring(1)))  // ^
+          write(out, inst);
     }
+  }
+  //-----------------------------------------
+  // Where to cut size statements into up to slices 
+  // slices, at least one: slice k is from[k] up to 
+  // from[k + 1].
+  //
+  static int[] cut(int size, int slices)
+  {
+    int n = Math.max(1, Math.min(slices, size));
+    int[] from = new int[n + 1];
+    for (int k = 1; k <= n; k++)
+      from[k] = (int)((long)k * size / n);
+    return from;
+  }
+  //-----------------------------------------
+  // Names pushed by program[from] up to program[to].
+  //
+  private HashSet<String> usedNames(int from, int to)
+  {
+    HashSet<String> used = new HashSet<String>();
+    for (S3Statement s : program.subList(from, to))
+      for (S3Instruction inst : s.code)
+        if (inst.is("p") || inst.is("pc"))
+          used.add(inst.opnd);
+    return used;
+  }
+  public String getLabel(){
+    return "@L"+labelNumber++;
+  }
+  //-----------------------------------------
+  public void endCode()
+  {
+    endCode(1);
+  }
+  //-----------------------------------------
+  // endCode for a program cut into up to slices slices, 
+  // whose kept code is refolded, used names found and 
+  // code formatted at once on the fork-join pool, while
+  // the slices done so far are written in order.  The 
+  // partial evaluator and dead store removal carry what
+  // they know from one statement to the next, so they 
+  // still run over the whole program in turn.
+  //
+  public void endCode(int slices)
+  {
+    endStatement();
+    if (part)              // S3Parallel joins the parts
+      return;
+    ended = true;
+    if (evaluate)
+      new S3PartialEvaluator(this, peephole).evaluate(program,
+                                                   slices);
+    removeDeadStores();
 
-    else  // check for identifier
-    if (Character.isLetter(currentChar)) 
-    { 
-      buffer.setLength(0);  // clear buffer
-      do  // build token image in buffer
-      {
-        buffer.append(currentChar);
-        token.endLine = currentLineNumber;
-        token.endColumn = currentColumnNumber;
-        getNextChar();
-      } while (Character.isLetterOrDigit(currentChar));
-      // save buffer as String in token.image
-      token.image = buffer.toString();
+    // slice k is program[from[k]] up to program[from[k+1]]
+    int[] from = cut(program.size(), slices);
+    int n = from.length - 1;
 
-      // check if keyword
-      if (token.image.equals("print"))
-        token.kind = PRINT;
-      else if (token.image.equals("println"))
-        token.kind = PRINTLN;
-      else if (token.image.equals("readint"))
-        token.kind = READINT;
-      else  // not a keyword so kind is ID
-        token.kind = ID;
+    // only variables and strings the remaining code uses 
+    // get a dw
+    ArrayList<ForkJoinTask<HashSet<String>>> finds = 
+               new ArrayList<ForkJoinTask<HashSet<String>>>();
+    for (int k = 0; k < n; k++)
+    {
+      int slice = k;
+      finds.add(ForkJoinTask.adapt(() -> 
+                 usedNames(from[slice], from[slice + 1])));
     }
+    ForkJoinTask.invokeAll(finds);
+    HashSet<String> used = new HashSet<String>();
+    for (ForkJoinTask<HashSet<String>> find : finds)
+      used.addAll(find.join());
 
-    else  // process single-character token
-    {  
-      switch(currentChar)
+    if (n == 1)
+      writeStatements(outFile, 0, program.size(), used);
+    else
+    {
+      ArrayList<ForkJoinTask<S3Output>> formats = 
+                      new ArrayList<ForkJoinTask<S3Output>>();
+      for (int k = 0; k < n; k++)
       {
-        case '=':
-          token.kind = ASSIGN;
-          break;                               
-        case ';':
-          token.kind = SEMICOLON;
-          break;                               
-        case '(':
-          token.kind = LEFTPAREN;
-          break;                               
-        case ')':
-          token.kind = RIGHTPAREN;
-          break;                               
-        case '+':
-          token.kind = PLUS;
-          break;                               
-        case '-':
-          token.kind = MINUS;
-          break;                               
-        case '*':
-          token.kind = TIMES;
-          break;   
-        case '/':
-          token.kind = DIV;
-          break;   
-        case '{':
-          token.kind = LEFTCURLYBRACKET;
-          break; 
-        case '}':
-          token.kind = RIGHTCURLYBRACKET;
-          break; 		  
-        default:
-          token.kind = ERROR;
-          break;                               
+        int slice = k;
+        formats.add(ForkJoinTask.adapt(() -> 
+        {
+          S3Output out = outFile.slice();
+          writeStatements(out, from[slice], 
+                                 from[slice + 1], used);
+          return out;
+        }));
       }
-
-      // save currentChar as String in token.image
-      token.image = Character.toString(currentChar);
-
-      // save end-of-token position
-      token.endLine = currentLineNumber;
-      token.endColumn = currentColumnNumber;
-
-      getNextChar();  // read beyond end of token
+      for (ForkJoinTask<S3Output> format : formats)
+        format.fork();
+      for (ForkJoinTask<S3Output> format : formats)
+        outFile.append(format.join());
     }
 
-    // token trace appears as comments in output file
-    if (debug)
-      outFile.printf(
-        "; kd=%3d bL=%3d bC=%3d eL=%3d eC=%3d im=%s%n",
-        token.kind, token.beginLine, token.beginColumn, 
-        token.endLine, token.endColumn, token.image);
+    outFile.println();
+    write(outFile, new S3Instruction("halt", null));
 
-    return token;     // return token to parser
-  }     
+    int size = st.getSize();
+    // emit dw for each symbol in the symbol table
+    for (int i=0; i < size; i++) 
+      if (used.contains(st.getSymbol(i)))
+        write(outFile, 
+              new S3Instruction(st.getSymbol(i), "dw", "0"));
+  }
   //-----------------------------------------
-  private void getNextChar()
+  // After a syntax error, write the listing and the code
+  // for what was parsed before it, which the error 
+  // message then follows.  The program is incomplete, so
+  // none of the whole-program passes run.
+  //
+  public void endCodeAtError()
   {
-    if (currentChar == EOF)
+    if (ended)
       return;
-
-    if (currentChar == '\n')        // need next line?
+    ended = true;
+    endStatement();
+    writeStatements(outFile, 0, program.size(), null);
+  }
+  //-----------------------------------------
+  // Remove each assignment whose variable is not read
+  // before it is assigned again or the program ends.  
+  // The program is straight-line code, so this is one
+  // backward pass that tracks the variables live at
+  // each point.  Only simple assignments, pc x followed
+  // by side-effect-free code and stav, are removed.  Any
+  // other code (output, readint, chained assignments 
+  // that use dupe/rot, a div by anything but a nonzero
+  // constant, which may stop the program) is kept and
+  // only adds the variables it reads to the live set.
+  //
+  private void removeDeadStores()
+  {
+    HashSet<String> live = new HashSet<String>();
+    for (int i = program.size() - 1; i >= 0; i--)
     {
-      if (inFile.hasNextLine())     // any lines left?
-      {
-        inputLine = inFile.nextLine();  // get next line
-        // output source line as comment
-        outFile.println("; " + inputLine);
-        inputLine = inputLine + "\n";   // mark line end
-        currentColumnNumber = 0;
-        currentLineNumber++;   
-      }                                
-      else  // at end of file
+      ArrayList<S3Instruction> code = program.get(i).code;
+      int end = code.size();
+      while (end > 0)
       {
-         currentChar = EOF;
-         return;
+        int start = assignmentStart(code, end);
+        if (start < 0)          // keep the rest
+        {
+          addReads(live, code, 0, end);
+          break;
+        }
+
+        String target = code.get(start).opnd;
+        if (!live.contains(target))
+          code.subList(start, end).clear();
+        else
+        {
+          live.remove(target);
+          addReads(live, code, start, end);
+        }
+        end = start;
       }
     }
+  }
+  //-----------------------------------------
+  // If code[end-1] ends a simple assignment, return the
+  // index of its pc.  Otherwise, return -1.
+  //
+  private int assignmentStart(ArrayList<S3Instruction> code,
+                                                  int end)
+  {
+    if (!code.get(end - 1).is("stav"))
+      return -1;
 
-    // get next char from inputLine
-    currentChar = inputLine.charAt(currentColumnNumber++);
-
-    // in S3, test for single-line comment goes here
-	
-	if(currentChar == '/' && inputLine.charAt(currentColumnNumber) == '/' && tF != true){
-		currentChar = '\n';
-	}
-		
+    int depth = 0;         // values pushed by the operand
+    int i = end - 2;
+    for (; i >= 0; i--)
+    {
+      S3Instruction inst = code.get(i);
+      if (inst.is("p") || inst.is("pwc"))
+        depth++;
+      else if (inst.is("add") || inst.is("sub") || 
+               inst.is("mult"))
+        depth--;
+      else if (inst.is("div") && i > 0 && 
+                                   isNonzero(code.get(i - 1)))
+        depth--;
+      else if (!inst.is("neg"))
+        break;
+    }
+    if (i < 0 || depth != 1 || !code.get(i).is("pc"))
+      return -1;
+    return i;
   }
-}                                   // end of S3TokenMgr
+  //-----------------------------------------
+  // True if inst pushes a constant that is not 0 as a
+  // 16-bit word.
+  //
+  private boolean isNonzero(S3Instruction inst)
+  {
+    return inst.is("pwc") && 
+                       (short)Integer.parseInt(inst.opnd) != 0;
+  }
+  //-----------------------------------------
+  private void addReads(HashSet<String> live, 
+             ArrayList<S3Instruction> code, int from, int to)
+  {
+    for (int i = from; i < to; i++)
+      if (code.get(i).is("p"))
+        live.add(code.get(i).opnd);
+  }
+}                                    // end of S3CodeGen
 //======================================================
-class S3Parser implements S3Constants
+class S3Statement
+{
+  public ArrayList<String> comments;     // lines before it
+  public ArrayList<S3Instruction> code;
+  public ArrayList<S3Instruction> strings; // its dws
+  //-----------------------------------------
+  public S3Statement(ArrayList<String> comments,
+                     ArrayList<S3Instruction> code,
+                     ArrayList<S3Instruction> strings)
+  {
+    this.comments = comments;
+    this.code = code;
+    this.strings = strings;
+  }
+}                                   // end of S3Statement
+//======================================================
+// The partial evaluator runs as much of the program as it
+// can at compile time.  S3 programs are straight-line 
+// code and every variable starts out 0, so the only 
+// values not known at compile time are those that depend
+// on readint.
+//
+// A statement's code is split into segments, each ending
+// where the stack is empty again (e.g., p x/dout, then
+// pc '\n'/aout).  A segment that uses no unknown value is
+// run here: its stores update the known values and its 
+// output is added to a buffer.  Any other segment is kept,
+// with each p of a variable whose value is known replaced
+// by a pwc of that value.  The buffered output is emitted
+// as strings, through getLabel/emitdw, just before the 
+// next kept segment that does I/O or divides (which may
+// stop the program), or at the end.  Each string holds 
+// at most MAX_STRING chars, so a program with a lot of 
+// output does not get one huge dw.
+//
+class S3PartialEvaluator
 {
-  private S3SymTab st;
-  private S3TokenMgr tm;
   private S3CodeGen cg;
-  private Token currentToken;
-  private Token previousToken; 
+  private S3Peephole peephole;  // refolds kept code
+  private HashMap<String, Integer> values; // known values
+  private HashSet<String> unknown;   // set from readint
+  private HashMap<String, String> strings;  // label->text
+  private StringBuilder output;  // as dw string contents
+  private static final int MAX_STRING = 128;  // in a dw
   //-----------------------------------------
-  public S3Parser(S3SymTab st, S3TokenMgr tm, 
-                                           S3CodeGen cg)
+  public S3PartialEvaluator(S3CodeGen cg, 
+                                    S3Peephole peephole)
   {
-    this.st = st;
-    this.tm = tm;
-    this.cg = cg;   
-    // prime currentToken with first token
-    currentToken = tm.getNextToken(); 
-    previousToken = null;
+    this.cg = cg;
+    this.peephole = peephole;
+    values = new HashMap<String, Integer>();
+    unknown = new HashSet<String>();
+    strings = new HashMap<String, String>();
+    output = new StringBuilder();
   }
   //-----------------------------------------
-  // Construct and return an exception that contains
-  // a message consisting of the image of the current
-  // token, its location, and the expected tokens.
+  public void evaluate(ArrayList<S3Statement> program, 
+                                             int slices)
+  {
+    for (S3Statement s : program)
+    {
+      for (S3Instruction dw : s.strings)
+        strings.put(dw.label.substring(1),       // ^@Ln
+          dw.opnd.substring(1, dw.opnd.length() - 1));
+
+      ArrayList<S3Instruction> kept = 
+                             new ArrayList<S3Instruction>();
+      int start = 0;
+      while (start < s.code.size())
+      {
+        int end = segmentEnd(s.code, start);
+        List<S3Instruction> segment = 
+                                s.code.subList(start, end);
+        if (!run(segment, true))
+        {
+          if (doesIO(segment))
+            flush(kept, s.strings);
+
+          // its loads come before its stores
+          for (S3Instruction inst : segment)
+            kept.add(substitute(inst));
+          run(segment, false);
+        }
+        start = end;
+      }
+      s.code = kept;
+    }
+    refold(program, slices);
+
+    if (output.length() > 0)
+    {
+      S3Statement last = new S3Statement(
+          new ArrayList<String>(), 
+          new ArrayList<S3Instruction>(), 
+          new ArrayList<S3Instruction>());
+      flush(last.code, last.strings);
+      program.add(last);
+    }
+  }
+  //-----------------------------------------
+  // Refold the kept code of each statement, up to slices
+  // slices of the program at once on the fork-join pool,
+  // each with its own copy of peephole to count its hits.
   //
-  private RuntimeException genEx(String errorMessage)
+  private void refold(ArrayList<S3Statement> program, 
+                                             int slices)
   {
-    return new RuntimeException("Encountered \"" + 
-      currentToken.image + "\" on line " + 
-      currentToken.beginLine + ", column " + 
-      currentToken.beginColumn + "." +
-      System.getProperty("line.separator") + 
-      errorMessage);
+    int[] from = S3CodeGen.cut(program.size(), slices);
+    int n = from.length - 1;
+    S3Peephole[] peepholes = new S3Peephole[n];
+    ArrayList<ForkJoinTask<?>> tasks = 
+                             new ArrayList<ForkJoinTask<?>>();
+    for (int k = 0; k < n; k++)
+    {
+      int slice = k;
+      tasks.add(ForkJoinTask.adapt(() ->
+      {
+        peepholes[slice] = n == 1 ? peephole : 
+                                  new S3Peephole(peephole);
+        for (S3Statement s : 
+               program.subList(from[slice], from[slice + 1]))
+          peepholes[slice].optimize(s.code);
+      }));
+    }
+    ForkJoinTask.invokeAll(tasks);
+    if (n > 1)
+      for (S3Peephole p : peepholes)
+        peephole.addHits(p);
   }
   //-----------------------------------------
-  // Advance currentToken to next token.
+  // Return the index just past the end of the segment
+  // that starts at code[start].
   //
-  private void advance()
+  private int segmentEnd(ArrayList<S3Instruction> code, 
+                                               int start)
   {
-    previousToken = currentToken; 
-
-    // If next token is on token list, advance to it.
-    if (currentToken.next != null)
-      currentToken = currentToken.next;
-
-    // Otherwise, get next token from token mgr and 
-    // put it on the list.
-    else
-      currentToken = 
-                  currentToken.next = tm.getNextToken();
+    int depth = 0;
+    for (int i = start; i < code.size(); i++)
+    {
+      String op = code.get(i).op;
+      if (op.equals("p") || op.equals("pc") || 
+          op.equals("pwc") || op.equals("dupe") || 
+          op.equals("din"))
+        depth++;
+      else if (op.equals("stav"))
+        depth -= 2;
+      else if (!op.equals("neg") && !op.equals("rot"))
+        depth--;          // add, dout, sout, ...
+      if (depth <= 0)
+        return i + 1;
+    }
+    return code.size();
   }
   //-----------------------------------------
-  // getToken(i) returns ith token without advancing
-  // in token stream.  getToken(0) returns 
-  // previousToken.  getToken(1) returns currentToken.
-  // getToken(2) returns next token, and so on.
+  // A div counts, since dividing by 0 stops the program
+  // and the output before it must be out by then.
+  //
+  private boolean doesIO(List<S3Instruction> segment)
+  {
+    for (S3Instruction inst : segment)
+      if (inst.is("dout") || inst.is("aout") || 
+          inst.is("sout") || inst.is("din") || 
+          inst.is("div"))
+        return true;
+    return false;
+  }
+  //-----------------------------------------
+  // Run the segment on a stack of known values (Integer),
+  // addresses and labels (String), and unknown values 
+  // (null).  If onlyKnown is true, stop at the first
+  // unknown value, leaving everything unchanged, and 
+  // return false.  Otherwise, update the known values
+  // for the stores it does, add its output to the buffer
+  // (only done when everything is known) and return true.
+  //
+  private boolean run(List<S3Instruction> segment, 
+                                       boolean onlyKnown)
+  {
+    ArrayList<Object> stack = new ArrayList<Object>();
+    ArrayList<Object> stores = new ArrayList<Object>();
+    StringBuilder out = new StringBuilder();
+
+    for (S3Instruction inst : segment)
+    {
+      String op = inst.op;
+      Object result;
+      if (op.equals("p"))
+        result = unknown.contains(inst.opnd) ? null : 
+                                      valueOf(inst.opnd);
+      else if (op.equals("pwc"))
+        result = parseInt(inst.opnd);
+      else if (op.equals("pc"))
+        result = inst.opnd.startsWith("'") ? 
+                        parseChar(inst.opnd) : inst.opnd;
+      else if (op.equals("din"))
+        result = null;
+      else if (op.equals("dupe"))
+        result = top(stack, 0);
+      else if (op.equals("neg"))
+      {
+        Object x = pop(stack);
+        result = x instanceof Integer ? 
+                     (Object)(int)(short)-(Integer)x : null;
+      }
+      else if (op.equals("rot"))
+      {
+        Object z = pop(stack);
+        Object y = pop(stack);
+        Object x = pop(stack);
+        stack.add(z);
+        stack.add(x);
+        result = y;
+      }
+      else if (op.equals("stav"))
+      {
+        Object v = pop(stack);
+        stores.add(pop(stack));
+        stores.add(v);
+        if (onlyKnown && v == null)
+          return false;
+        continue;
+      }
+      else if (op.equals("dout") || op.equals("aout") || 
+                                        op.equals("sout"))
+      {
+        Object x = pop(stack);
+        if (x == null || (op.equals("sout") ? 
+                          !strings.containsKey(x) :
+                          !(x instanceof Integer)))
+          return false;
+        if (op.equals("dout"))
+          out.append(x);
+        else if (op.equals("aout"))
+          out.append(escape((char)(int)(Integer)x));
+        else
+          out.append(strings.get(x));
+        continue;
+      }
+      else   // add, sub, mult or div
+      {
+        Object y = pop(stack);
+        Object x = pop(stack);
+        result = arithmetic(op, x, y);
+      }
+
+      if (onlyKnown && result == null)
+        return false;
+      stack.add(result);
+    }
+
+    for (int i = 0; i < stores.size(); i += 2)
+    {
+      String name = (String)stores.get(i);
+      Object v = stores.get(i + 1);
+      if (v == null)
+        unknown.add(name);
+      else
+      {
+        unknown.remove(name);
+        values.put(name, (Integer)v);
+      }
+    }
+    output.append(out);
+    return true;
+  }
+  //-----------------------------------------
+  // Emit the buffered output as strings of at most 
+  // MAX_STRING chars, using code that is added to code 
+  // and dws added to dws.
   //
-  private Token getToken(int i)
+  private void flush(ArrayList<S3Instruction> code, 
+                              ArrayList<S3Instruction> dws)
   {
-    if (i <= 0)
-      return previousToken;
-
-    Token t = currentToken;
-    for (int j = 1; j < i; j++)  // loop to ith token
+    int start = 0;
+    while (start < output.length())
     {
-      // if next token is on token list, move t to it
-      if (t.next != null)
-        t = t.next;
+      // an escape such as \n is not split
+      int end = start;
+      while (end < output.length())
+      {
+        int width = output.charAt(end) == '\\' ? 2 : 1;
+        if (end - start + width > MAX_STRING)
+          break;
+        end += width;
+      }
 
-      // Otherwise, get next token from token mgr and 
-      // put it on the list.
-      else
-        t = t.next = tm.getNextToken();
+      String label = cg.getLabel();
+      code.add(new S3Instruction("pc", label));
+      code.add(new S3Instruction("sout", null));
+      dws.add(new S3Instruction("^" + label, "dw", 
+                "\"" + output.substring(start, end) + "\""));
+      start = end;
     }
-    return t;
+    output.setLength(0);
   }
   //-----------------------------------------
-  // If the kind of the current token matches the
-  // expected kind, then consume advances to the next
-  // token. Otherwise, it throws an exception.
-  //
-  private void consume(int expected)
+  private S3Instruction substitute(S3Instruction inst)
   {
-    if (currentToken.kind == expected)
-      advance();
-    else
-      throw genEx("Expecting " + tokenImage[expected]);
+    if (inst.is("p") && !unknown.contains(inst.opnd))
+      return new S3Instruction("pwc", 
+                                 "" + valueOf(inst.opnd));
+    return inst;
   }
   //-----------------------------------------
-  public void parse()
+  private Integer valueOf(String name)
   {
-    program();   // program is start symbol for grammar
+    Integer v = values.get(name);
+    return v == null ? 0 : v;      // dw 0 to start with
   }
   //-----------------------------------------
-  private void program()
+  private Object arithmetic(String op, Object x, Object y)
   {
-    statementList();
-    cg.endCode();
-    if (currentToken.kind != EOF)  //garbage at end?
-      throw genEx("Expecting <EOF>");
+    if (!(x instanceof Integer) || !(y instanceof Integer))
+      return null;
+    int a = (Integer)x;
+    int b = (Integer)y;
+    int result;
+    if (op.equals("add"))
+      result = a + b;
+    else if (op.equals("sub"))
+      result = a - b;
+    else if (op.equals("mult"))
+      result = a * b;
+    else if (op.equals("div") && b != 0)
+      result = a / b;
+    else
+      return null;      // division by 0 left to run time
+    return (int)(short)result;
   }
   //-----------------------------------------
-  private void statementList()
+  private Object top(ArrayList<Object> stack, int i)
   {
-    switch(currentToken.kind)
-    {
-      case ID:
-      case PRINTLN:
-        statement();
-        statementList();
-        break;
-	  case PRINT:
-        statement();
-        statementList();	
-        break;		
-	case SEMICOLON:
-        statement();
-        statementList();
-        break;
-    case LEFTCURLYBRACKET:
-        statement();
-        statementList();
-        break;	
-      case READINT:
-        statement();
-        statementList();
-        break;
-        case EOF:
-        case RIGHTCURLYBRACKET:
-        ;
-        break;
-      default:
-        throw genEx("Expecting statement or <EOF>");
-    }
+    return stack.isEmpty() ? null : 
+                         stack.get(stack.size() - 1 - i);
   }
   //-----------------------------------------
-  private void statement()
+  private Object pop(ArrayList<Object> stack)
   {
-    switch(currentToken.kind)
+    return stack.isEmpty() ? null : 
+                          stack.remove(stack.size() - 1);
+  }
+  //-----------------------------------------
+  private Integer parseInt(String s)
+  {
+    try
     {
-      case ID: 
-        assignmentStatement(); 
-        break;
-      case PRINTLN:    
-        printlnStatement(); 
-        break;
-	  case PRINT:    
-        printStatement(); 
-        break;
-	  case SEMICOLON:    
-        nullStatement(); 
-        break;
-	case LEFTCURLYBRACKET:    
-        compoundStatement(); 
-        break;
-  case READINT:    
-        readIntStatement(); 
-        break;
-      default:         
-        throw genEx("Expecting statement");
+      return (int)(short)Integer.parseInt(s);
+    }
+    catch (NumberFormatException e)
+    {
+      return null;
     }
   }
   //-----------------------------------------
-  private void assignmentStatement()
+  // Value of a character constant such as 'a' or '\n'.
+  //
+  private Integer parseChar(String s)
   {
-    Token t;
-    t = currentToken;
-    consume(ID);
-    st.enter(t.image);
-    cg.emitInstruction("pc", t.image);
-    consume(ASSIGN);
-    assignmentTail();
-    cg.emitInstruction("stav");
+    if (s.length() == 3)
+      return (int)s.charAt(1);
+    if (s.length() == 4 && s.charAt(1) == '\\')
+      switch(s.charAt(2))
+      {
+        case 'n':  return (int)'\n';
+        case 't':  return (int)'\t';
+        case '0':  return 0;
+        case '\\': return (int)'\\';
+        case '\'': return (int)'\'';
+        case '"':  return (int)'"';
+      }
+    return null;
   }
-  private void assignmentTail()
+  //-----------------------------------------
+  // How c is written inside a dw string.
+  //
+  private String escape(char c)
   {
-    if(getToken(1).kind == ID && getToken(2).kind == ASSIGN){
-      Token t;
-      t = currentToken;
-      consume(ID);
-      st.enter(t.image);
-      cg.emitInstruction("pc", t.image);
-      consume(ASSIGN);
-      assignmentTail();
-      cg.emitInstruction("dupe");
-      cg.emitInstruction("rot");
-      cg.emitInstruction("stav");
-    }else{
-      expr();
-      consume(SEMICOLON);
+    switch(c)
+    {
+      case '\n': return "\\n";
+      case '\t': return "\\t";
+      case '\\': return "\\\\";
+      case '"':  return "\\\"";
+      default:   return Character.toString(c);
     }
   }
+}                           // end of S3PartialEvaluator
+//======================================================
+class S3Instruction
+{
+  public String label;   // only a dw has a label
+  public String op;
+  public String opnd;    // null if op has no operand
   //-----------------------------------------
-  private void printlnStatement()
+  public S3Instruction(String op, String opnd)
   {
-    consume(PRINTLN);
-    consume(LEFTPAREN);
-    if(currentToken.kind == RIGHTPAREN){
-
-    }else{
-      printArgs(); 
-    }
-    cg.emitInstruction("pc", "'\\n'");
-    cg.emitInstruction("aout");
-    consume(RIGHTPAREN);
-    consume(SEMICOLON);
+    this(null, op, opnd);
   }
-    //-----------------------------------------
-    private void printArgs(){
-      Token t;
-      String label;
-      if(currentToken.kind == STRING){
-       
-        t = currentToken; // save string token
-        consume(STRING);
-        label = cg.getLabel(); // get label for string
-        cg.emitInstruction ("pc", label);
-        cg.emitInstruction("sout");
-        cg.emitdw("^" + label, t.image);
-      }else{
-        expr();
-        cg.emitInstruction("dout");
-      }
-    }
-    //-----------------------------------------
-    private void printStatement()
+  //-----------------------------------------
+  public S3Instruction(String label, String op, 
+                                            String opnd)
   {
-    consume(PRINT);
-    consume(LEFTPAREN);
-    printArgs();
-    consume(RIGHTPAREN);
-    consume(SEMICOLON);
+    this.label = label;
+    this.op = op;
+    this.opnd = opnd;
   }
-   //-----------------------------------------
-  private void nullStatement()
+  //-----------------------------------------
+  public boolean is(String op)
   {
-    consume(SEMICOLON);
+    return this.op.equals(op);
   }
-   //-----------------------------------------
-  private void compoundStatement()
+  //-----------------------------------------
+  public boolean is(String op, String opnd)
   {
-    consume(LEFTCURLYBRACKET);
-	  statementList();
-    consume(RIGHTCURLYBRACKET);
+    return this.op.equals(op) && opnd.equals(this.opnd);
   }
-  //-----------------------------------------
-  private void readIntStatement()
+}                                 // end of S3Instruction
+//======================================================
+class S3Peephole
+{
+  // names of the rules, also used on the command line
+  public static final String[] RULES = 
   {
-    consume(READINT);
-    consume(LEFTPAREN);
-
-      Token t;
-      t = currentToken;
-      consume(ID);
-      st.enter(t.image);
-      cg.emitInstruction("pc", t.image);
-      cg.emitInstruction("din");
-      cg.emitInstruction("stav");
+    "fold",        // pwc a  pwc b  op    =>  pwc a op b
+    "negconst",    // pwc a  neg          =>  pwc -a
+    "negneg",      // neg  neg            =>
+    "addzero",     // pwc 0  add|sub      =>
+    "multone",     // pwc 1  mult|div     =>
+    "chain",       // pc a  pc b  x  dupe  rot  stav  stav
+                   //       =>  pc b  x  stav  pc a  x  stav
+    "selfassign"   // pc a  p a  stav     =>
+  };
 
-    consume(RIGHTPAREN);
-    consume(SEMICOLON);
+  private boolean[] enabled;
+  private int[] hits;
+  //-----------------------------------------
+  public S3Peephole()
+  {
+    enabled = new boolean[RULES.length];
+    hits = new int[RULES.length];
+    Arrays.fill(enabled, true);
   }
   //-----------------------------------------
-  private void expr()
+  // A fresh set of hit counts with the same rules enabled,
+  // so that concurrent compiles do not share counters.
+  //
+  public S3Peephole(S3Peephole settings)
   {
-    term();
-    termList();
+    enabled = settings.enabled.clone();
+    hits = new int[RULES.length];
   }
   //-----------------------------------------
-  private void termList()
+  // Enable or disable the named rule, or all rules if
+  // name is "all".
+  //
+  public void setEnabled(String name, boolean on)
   {
-    switch(currentToken.kind)
+    if (name.equals("all"))
     {
-      case PLUS:
-        consume(PLUS);
-        term();
-        cg.emitInstruction("add");
-        termList();
-        break;
-    case MINUS:
-        consume(MINUS);
-        term();
-        cg.emitInstruction("sub");
-        termList();
-        break;
-        case RIGHTPAREN:
-        case SEMICOLON:
-        ;
-        break;
-      default:
-        throw genEx("Expecting \"+\", \"-\", \")\", or \";\"");
+      Arrays.fill(enabled, on);
+      return;
     }
+    for (int r = 0; r < RULES.length; r++)
+      if (RULES[r].equals(name))
+      {
+        enabled[r] = on;
+        return;
+      }
+    throw new IllegalArgumentException(
+                       "Unknown peephole rule " + name);
   }
   //-----------------------------------------
-  private void term()
+  public int getHits(int rule)
   {
-    factor();
-    factorList();
+    return hits[rule];
   }
   //-----------------------------------------
-  private void factorList()
+  public boolean isEnabled(int rule)
   {
-    switch(currentToken.kind)
+    return enabled[rule];
+  }
+  //-----------------------------------------
+  public synchronized void addHits(S3Peephole other)
+  {
+    for (int r = 0; r < RULES.length; r++)
+      hits[r] += other.hits[r];
+  }
+  //-----------------------------------------
+  public void printStats(PrintStream out)
+  {
+    out.println("peephole rule hits:");
+    for (int r = 0; r < RULES.length; r++)
+      out.printf("  %-12s %6d%s%n", RULES[r], hits[r],
+                               enabled[r] ? "" : " (off)");
+  }
+  //-----------------------------------------
+  // Apply the enabled rules to the window until none of
+  // them matches anywhere.
+  //
+  public void optimize(ArrayList<S3Instruction> w)
+  {
+    boolean changed;
+    do
     {
-      case TIMES:
-        consume(TIMES);
-        factor();
-        cg.emitInstruction("mult");
-        factorList();
-        break;
-    case DIV:
-        consume(DIV);
-        factor();
-        cg.emitInstruction("div");
-        factorList();
-        break;
-      case PLUS:
-      case MINUS:
-      case RIGHTPAREN:
-      case SEMICOLON:
-        ;
-        break;
-      default:
-        throw genEx("Expecting op, \")\", \"/\", or \";\"");
-    }
+      changed = false;
+      for (int i = 0; i < w.size(); i++)
+        for (int r = 0; r < RULES.length; r++)
+          if (enabled[r] && apply(r, w, i))
+          {
+            hits[r]++;
+            changed = true;
+          }
+    } while (changed);
   }
   //-----------------------------------------
-  private void factor()
-  {  
-    Token t;
-
-    switch(currentToken.kind)
+  // Try rule r at position i of w.  If it matches, 
+  // rewrite w and return true.
+  //
+  private boolean apply(int r, ArrayList<S3Instruction> w,
+                                                   int i)
+  {
+    switch(r)
     {
-      case UNSIGNED:
-        t = currentToken;
-        consume(UNSIGNED);
-        cg.emitInstruction("pwc", t.image);
-        break;
-      case ID:
-        t = currentToken;
-        consume(ID);
-        st.enter(t.image);
-        cg.emitInstruction("p", t.image);
-        break;
-      case LEFTPAREN:
-        consume(LEFTPAREN);
-        expr();
-        consume(RIGHTPAREN);
-        break;
-      case PLUS:
-        consume(PLUS);
-        factor();
-        break;
-      case MINUS:
-      consume(MINUS);
-        if(getToken(1).kind == UNSIGNED){
-          t = currentToken;
-          consume(UNSIGNED);
-          cg.emitInstruction("pwc", "-" + t.image);
+      case 0:
+        return fold(w, i);
+      case 1:
+        if (at(w, i, "pwc") && at(w, i + 1, "neg") &&
+                                     isConstant(w.get(i)))
+        {
+          int a = value(w.get(i));
+          w.set(i, new S3Instruction("pwc", 
+                                    "" + (int)(short)-a));
+          w.remove(i + 1);
+          return true;
         }
-        else if(getToken(1).kind == ID){
-          t = currentToken;
-          consume(ID);
-          st.enter(t.image);
-          cg.emitInstruction("p", t.image);
-          cg.emitInstruction("neg");
+        return false;
+      case 2:
+        if (at(w, i, "neg") && at(w, i + 1, "neg"))
+        {
+          remove(w, i, 2);
+          return true;
         }
-        else if(getToken(1).kind == LEFTPAREN){
-          consume(LEFTPAREN);
-          expr();
-          consume(RIGHTPAREN);
-          cg.emitInstruction("neg");
+        return false;
+      case 3:
+        if (i + 1 < w.size() && w.get(i).is("pwc", "0") &&
+              (at(w, i + 1, "add") || at(w, i + 1, "sub")))
+        {
+          remove(w, i, 2);
+          return true;
         }
-        else if(getToken(1).kind == PLUS){
-          consume(PLUS);
-          factor();
-          cg.emitInstruction("neg");
+        return false;
+      case 4:
+        if (i + 1 < w.size() && w.get(i).is("pwc", "1") &&
+             (at(w, i + 1, "mult") || at(w, i + 1, "div")))
+        {
+          remove(w, i, 2);
+          return true;
         }
-        else if(getToken(1).kind == MINUS){
-          consume(MINUS);
-          factor();
+        return false;
+      case 5:
+        return chain(w, i);
+      case 6:
+        if (at(w, i, "pc") && i + 2 < w.size() &&
+                  w.get(i + 1).is("p", w.get(i).opnd) &&
+                  w.get(i + 2).is("stav"))
+        {
+          remove(w, i, 3);
+          return true;
         }
-
-        break;
-
+        return false;
       default:
-        throw genEx("Expecting factor");
+        return false;
     }
   }
-}                                     // end of S3Parser
-//======================================================
-class S3CodeGen
-{
-  private PrintWriter outFile;
-  private S3SymTab st;
-  private int labelNumber=0;
   //-----------------------------------------
-  public S3CodeGen(PrintWriter outFile, S3SymTab st)
+  private boolean fold(ArrayList<S3Instruction> w, int i)
   {
-    this.outFile = outFile;
-    this.st = st;
+    if (!at(w, i, "pwc") || !at(w, i + 1, "pwc") ||
+        i + 2 >= w.size() || 
+        !isConstant(w.get(i)) || !isConstant(w.get(i + 1)))
+      return false;
+
+    int x = value(w.get(i));
+    int y = value(w.get(i + 1));
+    String op = w.get(i + 2).op;
+    int result;
+    if (op.equals("add"))
+      result = x + y;
+    else if (op.equals("sub"))
+      result = x - y;
+    else if (op.equals("mult"))
+      result = x * y;
+    else if (op.equals("div") && y != 0)  // 0 at run time
+      result = x / y;
+    else
+      return false;
+
+    // wrap to 16 bits as the target does
+    w.set(i, 
+          new S3Instruction("pwc", "" + (int)(short)result));
+    remove(w, i + 1, 2);
+    return true;
   }
   //-----------------------------------------
-  public void emitInstruction(String op)
+  // A chained assignment a = b = ... = x, where x is a 
+  // single push, is compiled to n pc's, x, n-1 copies of 
+  // dupe/rot/stav and a final stav.  Storing x into each
+  // target in turn is shorter by n-1 instructions.  It
+  // gives the same result even if x is a p of one of the
+  // targets, since x is stored into that target unchanged.
+  //
+  private boolean chain(ArrayList<S3Instruction> w, int i)
   {
-    outFile.printf("          %-4s%n", op); 
+    int n = 0;
+    while (at(w, i + n, "pc"))
+      n++;
+    int x = i + n;
+    if (n < 2 || !(at(w, x, "p") || at(w, x, "pwc")))
+      return false;
+
+    int j = x + 1;
+    for (int k = 0; k < n - 1; k++, j += 3)
+      if (!at(w, j, "dupe") || !at(w, j + 1, "rot") || 
+                                     !at(w, j + 2, "stav"))
+        return false;
+    if (!at(w, j, "stav"))
+      return false;
+
+    ArrayList<S3Instruction> stores = 
+                              new ArrayList<S3Instruction>();
+    for (int k = n - 1; k >= 0; k--)
+    {
+      stores.add(w.get(i + k));
+      stores.add(w.get(x));
+      stores.add(new S3Instruction("stav", null));
+    }
+    remove(w, i, j + 1 - i);
+    w.addAll(i, stores);
+    return true;
   }
   //-----------------------------------------
-  public void emitInstruction(String op, String opnd)
-  {           
-    outFile.printf("          %-4s      %s%n", op,opnd); 
+  private boolean at(ArrayList<S3Instruction> w, int i, 
+                                                String op)
+  {
+    return i < w.size() && w.get(i).is(op);
   }
   //-----------------------------------------
-  public void emitdw(String label, String value)
-  {           
-    outFile.printf(
-             "%-9s dw        %s%n", label + ":", value);
+  private void remove(ArrayList<S3Instruction> w, int i,
+                                                   int n)
+  {
+    w.subList(i, i + n).clear();
   }
-  public String getLabel(){
-    return "@L"+labelNumber++;
+  //-----------------------------------------
+  // Only constants that fit in an int are folded.
+  //
+  private boolean isConstant(S3Instruction inst)
+  {
+    try
+    {
+      Integer.parseInt(inst.opnd);
+      return true;
+    }
+    catch (NumberFormatException e)
+    {
+      return false;
+    }
   }
   //-----------------------------------------
-  public void endCode()
+  // The constant of a pwc as the 16-bit word the target
+  // holds, so 65535 is -1.
+  //
+  private int value(S3Instruction inst)
   {
-    outFile.println();
-    emitInstruction("halt");
-
-    int size = st.getSize();
-    // emit dw for each symbol in the symbol table
-    for (int i=0; i < size; i++) 
-      emitdw(st.getSymbol(i), "0");
+    return (short)Integer.parseInt(inst.opnd);
   }
-}                                    // end of S3CodeGen
+}                                   // end of S3Peephole
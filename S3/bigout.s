@@ -0,0 +1,86 @@
+// The partial evaluator folds all of this output into
+// strings.  No dw in bigout.a may hold more than 128
+// chars between its quotes, escapes such as \n must not
+// be split, and the program must print 40 numbered
+// lines, each followed by x*(line number).
+x = 1000;
+print("line 1: the quick brown fox jumps over the lazy dog\t");
+println(x*1);
+print("line 2: the quick brown fox jumps over the lazy dog\t");
+println(x*2);
+print("line 3: the quick brown fox jumps over the lazy dog\t");
+println(x*3);
+print("line 4: the quick brown fox jumps over the lazy dog\t");
+println(x*4);
+print("line 5: the quick brown fox jumps over the lazy dog\t");
+println(x*5);
+print("line 6: the quick brown fox jumps over the lazy dog\t");
+println(x*6);
+print("line 7: the quick brown fox jumps over the lazy dog\t");
+println(x*7);
+print("line 8: the quick brown fox jumps over the lazy dog\t");
+println(x*8);
+print("line 9: the quick brown fox jumps over the lazy dog\t");
+println(x*9);
+print("line 10: the quick brown fox jumps over the lazy dog\t");
+println(x*10);
+print("line 11: the quick brown fox jumps over the lazy dog\t");
+println(x*11);
+print("line 12: the quick brown fox jumps over the lazy dog\t");
+println(x*12);
+print("line 13: the quick brown fox jumps over the lazy dog\t");
+println(x*13);
+print("line 14: the quick brown fox jumps over the lazy dog\t");
+println(x*14);
+print("line 15: the quick brown fox jumps over the lazy dog\t");
+println(x*15);
+print("line 16: the quick brown fox jumps over the lazy dog\t");
+println(x*16);
+print("line 17: the quick brown fox jumps over the lazy dog\t");
+println(x*17);
+print("line 18: the quick brown fox jumps over the lazy dog\t");
+println(x*18);
+print("line 19: the quick brown fox jumps over the lazy dog\t");
+println(x*19);
+print("line 20: the quick brown fox jumps over the lazy dog\t");
+println(x*20);
+print("line 21: the quick brown fox jumps over the lazy dog\t");
+println(x*21);
+print("line 22: the quick brown fox jumps over the lazy dog\t");
+println(x*22);
+print("line 23: the quick brown fox jumps over the lazy dog\t");
+println(x*23);
+print("line 24: the quick brown fox jumps over the lazy dog\t");
+println(x*24);
+print("line 25: the quick brown fox jumps over the lazy dog\t");
+println(x*25);
+print("line 26: the quick brown fox jumps over the lazy dog\t");
+println(x*26);
+print("line 27: the quick brown fox jumps over the lazy dog\t");
+println(x*27);
+print("line 28: the quick brown fox jumps over the lazy dog\t");
+println(x*28);
+print("line 29: the quick brown fox jumps over the lazy dog\t");
+println(x*29);
+print("line 30: the quick brown fox jumps over the lazy dog\t");
+println(x*30);
+print("line 31: the quick brown fox jumps over the lazy dog\t");
+println(x*31);
+print("line 32: the quick brown fox jumps over the lazy dog\t");
+println(x*32);
+print("line 33: the quick brown fox jumps over the lazy dog\t");
+println(x*33);
+print("line 34: the quick brown fox jumps over the lazy dog\t");
+println(x*34);
+print("line 35: the quick brown fox jumps over the lazy dog\t");
+println(x*35);
+print("line 36: the quick brown fox jumps over the lazy dog\t");
+println(x*36);
+print("line 37: the quick brown fox jumps over the lazy dog\t");
+println(x*37);
+print("line 38: the quick brown fox jumps over the lazy dog\t");
+println(x*38);
+print("line 39: the quick brown fox jumps over the lazy dog\t");
+println(x*39);
+print("line 40: the quick brown fox jumps over the lazy dog\t");
+println(x*40);
@@ -0,0 +1,17 @@
+// Constant folding must treat values as the 16-bit
+// words the target holds.  Each println of an
+// expression is followed by a println of the value the
+// target prints for it.
+println(65535/7);
+println(0);
+println((40000)/255);
+println(-100);
+println(70000/(10));
+println(446);
+println(300*300);
+println(24464);
+println(-(65535)/7);
+println(0);
+x = 65535;
+println(x/7);
+println(0);